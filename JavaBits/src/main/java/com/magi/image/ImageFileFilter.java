@@ -3,26 +3,31 @@ package com.magi.image;
 import java.io.File;
 import java.io.FileFilter;
 
+import com.magi.io.ExtensionMatcher;
+
 /**
  * File filter used to accept image file types and directories.
+ * Extensions are matched regardless of case.
  *
  * @author patkins
  */
 public class ImageFileFilter implements FileFilter {
 
-    private String[] supportedExtensions;
+    private String[]         supportedExtensions;
+    private ExtensionMatcher matcher;
 
     public ImageFileFilter() {
         // Just set the default
-        this.supportedExtensions = new String[] { ".jpg", ".jpeg", ".gif" };
+        this(new String[] { ".jpg", ".jpeg", ".gif" });
     }
 
     public ImageFileFilter(String[] supportedExtensions) {
-        this.supportedExtensions = supportedExtensions;
+        setSupportedExtensions(supportedExtensions);
     }
 
     public void setSupportedExtensions(String[] ext) {
         supportedExtensions = ext;
+        matcher = new ExtensionMatcher(ext, true);
     }
 
     public String[] getSupportedExtensions() {
@@ -33,13 +38,6 @@ public class ImageFileFilter implements FileFilter {
         if (file.isDirectory())
             return true;
 
-        String name = file.getName().toLowerCase();
-
-        for (int i = 0; i < supportedExtensions.length; i++) {
-            if (name.endsWith(supportedExtensions[i]))
-                return true;
-        }
-
-        return false;
+        return matcher.matches(file.getName());
     }
 }
@@ -5,6 +5,20 @@ package com.magi.io;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Scan a directory of files, which may contain other sub-directories of files.
@@ -13,13 +27,36 @@ import java.io.FileNotFoundException;
  * Subclasses should implement the processDirectory(File) and processFile(File)
  * abstract methods.
  *
+ * Directories are read with NIO, and each file found is stat'ed just once.  The
+ * File objects passed to the file filter and the process methods hold the
+ * attributes read, so isDirectory(), isFile(), length() and lastModified() do
+ * not touch the file system again.
+ *
+ * A directory can also be watched continuously with watch(long), which scans it
+ * once and then only processes the files and directories created or modified
+ * afterwards, as reported by the file system, rather than re-listing the whole
+ * tree in a polling loop.
+ *
  * @author patkins
  */
 public abstract class DirectoryScanner
 {
+    // A burst of events is dispatched after this many quiet debounce periods at most
+    private static final int  MAX_DEBOUNCE_PERIODS = 10;
+
+    // Allowance for file times that trail the events reported for them
+    private static final long OVERFLOW_SLACK = 2000;
+
     protected File       directory;
     protected boolean    subDirs;
     protected FileFilter fileFilter = null;
+    private boolean      aborted    = false; // a process method returned false
+
+    // Watch mode state, only used by the watching thread
+    private volatile WatchService watcher   = null;
+    private Map<WatchKey, Path>   watched   = null;
+    private Set<Path>             watchDirs = null;
+    private long                  collected = 0; // time events were last dispatched
 
     /**
      * Create a directory scanner.
@@ -53,6 +90,8 @@ public abstract class DirectoryScanner
      */
     public void scan() throws FileNotFoundException
     {
+        aborted = false;
+
         if (directory.exists())
         {
             if (directory.isDirectory())
@@ -61,6 +100,8 @@ public abstract class DirectoryScanner
                 {
                     scanDirectory(directory);
                 }
+                else
+                    aborted = true;
             }
             else
                 throw new FileNotFoundException("The filename specified is not a directory: " + directory);
@@ -94,9 +135,14 @@ public abstract class DirectoryScanner
      */
     protected void scanDirectory(File dir)
     {
+        if (watcher != null)
+            register(dir); // before listing, so no new file is missed
+
         boolean ok    = true;
-        File[]  files = ( fileFilter != null ? dir.listFiles(fileFilter) :
-                                               dir.listFiles() );
+        File[]  files = ScannedFile.listFiles(dir, fileFilter);
+
+        if (files == null) // unreadable directory
+            return;
 
         // Process all the FILES first
         for (int i = 0; i < files.length && ok; i++)
@@ -116,5 +162,266 @@ public abstract class DirectoryScanner
                     scanDirectory(files[i]);
             }
         }
+
+        if (!ok)
+            aborted = true;
+    }
+
+    /**
+     * WATCH the directory continuously.  The directory is scanned once, as by
+     * scan(), and then every directory scanned is registered with a WatchService.
+     * From then on processFile(File) is called for each file created or modified,
+     * and processDirectory(File) for each directory created, which (if
+     * sub-directories are included) is then scanned and watched in turn.  The
+     * file filter applies to these as it does to a scan.
+     *
+     * Events are debounced: once an event arrives, events continue to be
+     * collected until none have arrived for the debounce period (or for at most
+     * 10 debounce periods), and each file is then processed once, however many
+     * events it had.  If the file system drops events for a directory
+     * (an overflow), just that directory is re-listed, and only the files in it
+     * modified since events were last collected are processed.
+     *
+     * A file may occasionally be processed twice, such as when it is written in
+     * two bursts.  This method blocks until a process method returns false,
+     * stopWatching() is called, or the thread is interrupted.  It returns
+     * straight away if a process method returns false during the first scan.
+     *
+     * @param  debounce the quiet period in milliseconds before events are processed.
+     * @throws FileNotFoundException if the directory supplied does not exist or
+     *         is not a valid directory.
+     * @throws IOException if the directory could not be watched.
+     */
+    public void watch(long debounce) throws IOException
+    {
+        WatchService service = directory.toPath().getFileSystem().newWatchService();
+
+        watched   = new HashMap<WatchKey, Path>();
+        watchDirs = new HashSet<Path>();
+        collected = System.currentTimeMillis();
+        watcher   = service;
+
+        try
+        {
+            scan();
+            if (aborted)
+                return;
+
+            if (!watchDirs.contains(directory.toPath()))
+                throw new IOException("The directory could not be watched: " + directory);
+
+            watchEvents(service, Math.max(1L, debounce));
+        }
+        catch (ClosedWatchServiceException e)
+        {
+            // stopWatching() was called
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            watcher   = null;
+            watched   = null;
+            watchDirs = null;
+            service.close();
+        }
+    }
+
+    /**
+     * Stop watching the directory, which returns from watch(long).  This may be
+     * called from any thread.
+     */
+    public void stopWatching()
+    {
+        WatchService service = watcher;
+        if (service == null)
+            return;
+
+        try
+        {
+            service.close();
+        }
+        catch (IOException e)
+        {
+            // closed anyway - watch() returns
+        }
+    }
+
+    /**
+     * Collect and dispatch events until processing is aborted.
+     */
+    private void watchEvents(WatchService service, long debounce) throws InterruptedException
+    {
+        Map<Path, WatchEvent.Kind<?>> pending = new LinkedHashMap<Path, WatchEvent.Kind<?>>();
+        long                          first   = 0;
+
+        while (true)
+        {
+            WatchKey key;
+            if (pending.isEmpty())
+            {
+                key = service.take();
+            }
+            else
+            {
+                long wait = Math.min(debounce, first + debounce * MAX_DEBOUNCE_PERIODS -
+                                               System.currentTimeMillis());
+                key = (wait > 0 ? service.poll(wait, TimeUnit.MILLISECONDS) : null);
+            }
+
+            if (key == null) // quiet for long enough
+            {
+                boolean ok = dispatch(pending);
+                pending.clear();
+
+                if (!ok)
+                    return;
+                continue;
+            }
+
+            if (pending.isEmpty())
+                first = System.currentTimeMillis();
+
+            collect(key, pending);
+        }
+    }
+
+    /**
+     * Add the events of a watch key to the pending events.  A create is kept over
+     * a later modify of the same path.
+     */
+    private void collect(WatchKey key, Map<Path, WatchEvent.Kind<?>> pending)
+    {
+        Path dir = watched.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            if (dir == null)
+                continue;
+
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+                pending.put(dir, StandardWatchEventKinds.OVERFLOW);
+                continue;
+            }
+
+            Path child = dir.resolve((Path) event.context());
+            if (!pending.containsKey(child))
+                pending.put(child, event.kind());
+        }
+
+        if (!key.reset()) // directory no longer accessible
+        {
+            watched.remove(key);
+            watchDirs.remove(dir);
+        }
+    }
+
+    /**
+     * Process the pending events, in the order they first arrived.
+     *
+     * @return false if processing was aborted.
+     */
+    private boolean dispatch(Map<Path, WatchEvent.Kind<?>> pending)
+    {
+        long since = collected - OVERFLOW_SLACK;
+        collected  = System.currentTimeMillis();
+
+        Iterator<Map.Entry<Path, WatchEvent.Kind<?>>> it = pending.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<Path, WatchEvent.Kind<?>> event = it.next();
+            boolean                             ok    = true;
+
+            if (event.getValue() == StandardWatchEventKinds.OVERFLOW)
+            {
+                ok = rescan(event.getKey().toFile(), since);
+            }
+            else
+            {
+                File file = ScannedFile.of(event.getKey());
+                if (fileFilter != null && !fileFilter.accept(file))
+                    continue;
+
+                if (file.isFile())
+                    ok = processFile(file);
+                else if (file.isDirectory() && !watchDirs.contains(event.getKey()))
+                    ok = processNewDirectory(file);
+            }
+
+            if (!ok)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Process a directory found while watching, scanning and watching it too if
+     * sub-directories are included.
+     *
+     * @return false if processing was aborted.
+     */
+    private boolean processNewDirectory(File dir)
+    {
+        if (!processDirectory(dir))
+            return false;
+
+        if (subDirs)
+            scanDirectory(dir);
+
+        return true;
+    }
+
+    /**
+     * Re-list a directory whose events were lost, processing the files modified
+     * since the time given, and any sub-directories not yet watched.
+     *
+     * @return false if processing was aborted.
+     */
+    private boolean rescan(File dir, long since)
+    {
+        File[] files = ScannedFile.listFiles(dir, fileFilter);
+        if (files == null)
+            return true;
+
+        boolean ok = true;
+        for (int i = 0; i < files.length && ok; i++)
+        {
+            if (files[i].isFile())
+            {
+                if (files[i].lastModified() >= since)
+                    ok = processFile(files[i]);
+            }
+            else if (files[i].isDirectory() && !watchDirs.contains(files[i].toPath()))
+            {
+                ok = processNewDirectory(files[i]);
+            }
+        }
+
+        return ok;
+    }
+
+    /**
+     * Watch a directory for created and modified entries.  A directory that
+     * cannot be watched is still scanned.
+     */
+    private void register(File dir)
+    {
+        Path path = dir.toPath();
+
+        try
+        {
+            WatchKey key = path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                                  StandardWatchEventKinds.ENTRY_MODIFY);
+            watched.put(key, path);
+            watchDirs.add(path);
+        }
+        catch (IOException e)
+        {
+            // not watched - changes in this directory are not seen
+        }
     }
 }
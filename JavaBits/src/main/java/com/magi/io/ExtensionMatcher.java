@@ -0,0 +1,168 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.io;
+
+/**
+ * Matches file names against a set of file extensions, such as "jpg" or
+ * "tar.gz", in constant time however many extensions there are.
+ *
+ * The extensions are held in a small open addressing hash table, and a name is
+ * looked up directly from it's characters, so matching allocates nothing, not
+ * even a lower case copy of the name.  Matching may optionally ignore case.
+ *
+ * This object is immutable, and so thread safe.
+ *
+ * @author patkins
+ */
+public final class ExtensionMatcher
+{
+    private final char[][] table;   // the extensions, case folded if ignoring case
+    private final int      mask;
+    private final int      maxDots; // the most dots within any one extension
+    private final boolean  ignoreCase;
+    private final int      size;
+
+    /**
+     * Create a matcher for the extensions given.  A leading '.' on an extension
+     * is optional, so ".jpg" and "jpg" are the same extension.
+     *
+     * @param extensions the extensions to match.
+     * @param ignoreCase true to match regardless of case.
+     */
+    public ExtensionMatcher(String[] extensions, boolean ignoreCase)
+    {
+        int capacity = 8;
+        while (capacity < extensions.length * 2)
+            capacity <<= 1;
+
+        this.table      = new char[capacity][];
+        this.mask       = capacity - 1;
+        this.ignoreCase = ignoreCase;
+
+        int count = 0;
+        int dots  = 0;
+        for (String extension : extensions)
+        {
+            String ext = (extension.startsWith(".") ? extension.substring(1) : extension);
+            if (add(ext))
+            {
+                count++;
+                dots = Math.max(dots, dotCount(ext));
+            }
+        }
+
+        this.size    = count;
+        this.maxDots = dots;
+    }
+
+    /**
+     * Returns the number of distinct extensions matched.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns true if the name ends with '.' and one of the extensions.
+     *
+     * @param  name the file name.
+     * @return true on a match.
+     */
+    public boolean matches(String name)
+    {
+        if (size == 0)
+            return false;
+
+        int dots = 0;
+        for (int i = name.length() - 1; i >= 0 && dots <= maxDots; i--)
+        {
+            if (name.charAt(i) == '.')
+            {
+                if (contains(name, i + 1))
+                    return true;
+                dots++;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Add an extension to the table.
+     *
+     * @return false if it was already there.
+     */
+    private boolean add(String ext)
+    {
+        if (contains(ext, 0))
+            return false;
+
+        char[] chars = new char[ext.length()];
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = fold(ext.charAt(i));
+
+        int slot = hash(ext, 0) & mask;
+        while (table[slot] != null)
+            slot = (slot + 1) & mask;
+
+        table[slot] = chars;
+        return true;
+    }
+
+    /**
+     * Returns true if the characters of the name from the index given to the
+     * end are one of the extensions.
+     */
+    private boolean contains(String name, int from)
+    {
+        for (int slot = hash(name, from) & mask; table[slot] != null; slot = (slot + 1) & mask)
+        {
+            if (equals(table[slot], name, from))
+                return true;
+        }
+
+        return false;
+    }
+
+    private boolean equals(char[] ext, String name, int from)
+    {
+        if (ext.length != name.length() - from)
+            return false;
+
+        for (int i = 0; i < ext.length; i++)
+        {
+            if (ext[i] != fold(name.charAt(from + i)))
+                return false;
+        }
+
+        return true;
+    }
+
+    private int hash(String name, int from)
+    {
+        int h = 0;
+        for (int i = from; i < name.length(); i++)
+            h = 31 * h + fold(name.charAt(i));
+
+        return h ^ (h >>> 16);
+    }
+
+    private char fold(char c)
+    {
+        // Upper then lower, as String.equalsIgnoreCase, for alphabets such as Georgian
+        return (ignoreCase ? Character.toLowerCase(Character.toUpperCase(c)) : c);
+    }
+
+    private static int dotCount(String ext)
+    {
+        int dots = 0;
+        for (int i = 0; i < ext.length(); i++)
+        {
+            if (ext.charAt(i) == '.')
+                dots++;
+        }
+
+        return dots;
+    }
+}
@@ -0,0 +1,319 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts the files of one directory into FileScannerSort order, in bounded
+ * memory.
+ *
+ * Files are added as the directory is read.  Up to the run size they are just
+ * held in memory, but beyond that each run of files is sorted and spilled to a
+ * temporary file, and the runs are merged as the sorted files are read back.
+ * Each file's sort key and attributes are written with it, so nothing is
+ * stat'ed again.  No more than MAX_FAN_IN runs are read at once, so if there
+ * are more, groups of them are first merged into longer runs, in as many
+ * passes as it takes.
+ *
+ * Temporary file errors are thrown as UncheckedIOException.  The temporary
+ * files are deleted by close().
+ *
+ * @author patkins
+ */
+final class ExternalFileSorter implements Closeable
+{
+    // The most run files open at once, well inside any open file limit
+    private static final int MAX_FAN_IN = 64;
+
+    private final int                           runSize;
+    private final List<FileScannerSort.SortKey> buffer = new ArrayList<FileScannerSort.SortKey>();
+    private final List<File>                    runs   = new ArrayList<File>();
+    private final List<Run>                     open   = new ArrayList<Run>();
+
+    /**
+     * Create a sorter.
+     *
+     * @param runSize the most files held in memory at once.
+     */
+    ExternalFileSorter(int runSize)
+    {
+        this.runSize = Math.max(1, runSize);
+    }
+
+    /**
+     * Add a file to be sorted.
+     */
+    void add(File file)
+    {
+        buffer.add(new FileScannerSort.SortKey(ScannedFile.of(file)));
+
+        if (buffer.size() >= runSize)
+            spill();
+    }
+
+    /**
+     * Returns the files added, in sorted order.  No more files may be added.
+     */
+    Iterator<File> sorted()
+    {
+        if (runs.isEmpty())
+        {
+            Collections.sort(buffer);
+            final Iterator<FileScannerSort.SortKey> it = buffer.iterator();
+
+            return new Iterator<File>()
+            {
+                public boolean hasNext()
+                {
+                    return it.hasNext();
+                }
+
+                public File next()
+                {
+                    return it.next().file;
+                }
+            };
+        }
+
+        if (!buffer.isEmpty())
+            spill();
+
+        while (runs.size() > MAX_FAN_IN)
+            mergePass();
+
+        final PriorityQueue<Run> merge = openRuns(runs);
+
+        return new Iterator<File>()
+        {
+            public boolean hasNext()
+            {
+                return !merge.isEmpty();
+            }
+
+            public File next()
+            {
+                Run run = merge.poll();
+                if (run == null)
+                    throw new NoSuchElementException();
+
+                File file = run.head.file;
+                if (run.advance())
+                    merge.add(run);
+
+                return file;
+            }
+        };
+    }
+
+    /**
+     * Delete the temporary files.
+     */
+    public void close()
+    {
+        for (Run run : open)
+            run.close();
+
+        for (File run : runs)
+            run.delete();
+
+        open.clear();
+        runs.clear();
+    }
+
+    /**
+     * Sort the files in memory, and write them to a new run file.
+     */
+    private void spill()
+    {
+        Collections.sort(buffer);
+
+        try (DataOutputStream out = newRun())
+        {
+            for (FileScannerSort.SortKey key : buffer)
+                write(out, key);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Unable to spill a directory sort run", e);
+        }
+
+        buffer.clear();
+    }
+
+    /**
+     * Merge each group of MAX_FAN_IN runs into one longer run.  The merged runs
+     * keep the order of the runs they came from, so the merge stays stable.
+     */
+    private void mergePass()
+    {
+        List<File> inputs = new ArrayList<File>(runs);
+
+        for (int i = 0; i < inputs.size(); i += MAX_FAN_IN)
+        {
+            List<File>         group = inputs.subList(i, Math.min(i + MAX_FAN_IN, inputs.size()));
+            PriorityQueue<Run> merge = openRuns(group);
+
+            try (DataOutputStream out = newRun())
+            {
+                Run run;
+                while ((run = merge.poll()) != null)
+                {
+                    write(out, run.head);
+                    if (run.advance())
+                        merge.add(run);
+                }
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException("Unable to merge directory sort runs", e);
+            }
+
+            // Fully read, so already closed
+            open.clear();
+            for (File input : group)
+            {
+                input.delete();
+                runs.remove(input);
+            }
+        }
+    }
+
+    /**
+     * Open the runs given for merging.
+     *
+     * @return the runs that are not empty, lowest head first.
+     */
+    private PriorityQueue<Run> openRuns(List<File> files)
+    {
+        PriorityQueue<Run> merge = new PriorityQueue<Run>();
+
+        for (File file : files)
+        {
+            Run reader = new Run(file, open.size());
+            open.add(reader);
+            if (reader.advance())
+                merge.add(reader);
+        }
+
+        return merge;
+    }
+
+    /**
+     * Create a new run file, at the end of the runs.
+     */
+    private DataOutputStream newRun() throws IOException
+    {
+        File run = File.createTempFile("scansort", ".run");
+        runs.add(run);
+
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+    }
+
+    /**
+     * Write a file's sort key and attributes to a run.
+     */
+    private static void write(DataOutputStream out, FileScannerSort.SortKey key) throws IOException
+    {
+        ScannedFile file = (ScannedFile) key.file;
+
+        out.writeBoolean(key.directory);
+        out.writeUTF(key.name);
+        out.writeUTF(file.getPath());
+        out.writeBoolean(file.isFile());
+        out.writeLong(file.length());
+        out.writeLong(file.lastModified());
+        out.writeUTF(file.fileKey() == null ? "" : file.fileKey());
+    }
+
+    /**
+     * A sorted run being merged, and it's current (lowest) file.
+     */
+    private static final class Run implements Comparable<Run>
+    {
+        private final DataInputStream in;
+        private final int             index;
+        FileScannerSort.SortKey       head;
+
+        Run(File file, int index)
+        {
+            try
+            {
+                this.in    = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                this.index = index;
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException("Unable to read a directory sort run", e);
+            }
+        }
+
+        /**
+         * Read the next file of the run.
+         *
+         * @return false at the end of the run.
+         */
+        boolean advance()
+        {
+            try
+            {
+                boolean directory = in.readBoolean();
+                String  name      = in.readUTF();
+                String  path      = in.readUTF();
+                boolean isFile    = in.readBoolean();
+                long    length    = in.readLong();
+                long    modified  = in.readLong();
+                String  key       = in.readUTF();
+
+                ScannedFile file = new ScannedFile(path, directory, isFile, length, modified,
+                                                   key.length() == 0 ? null : key);
+                head = new FileScannerSort.SortKey(file, directory, name);
+                return true;
+            }
+            catch (EOFException e)
+            {
+                close();
+                return false;
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException("Unable to read a directory sort run", e);
+            }
+        }
+
+        /* Ties go to the earlier run, so the merge is stable */
+        public int compareTo(Run other)
+        {
+            int order = head.compareTo(other.head);
+            return (order != 0 ? order : Integer.compare(index, other.index));
+        }
+
+        void close()
+        {
+            try
+            {
+                in.close();
+            }
+            catch (IOException e)
+            {
+                // only read from - nothing lost
+            }
+        }
+    }
+}
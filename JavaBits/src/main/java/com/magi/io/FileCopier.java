@@ -2,43 +2,543 @@
  * See http://www.gnu.org/copyleft/lesser.html for details. */
 package com.magi.io;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
+/**
+ * Copies and moves files, byte for byte.
+ *
+ * Files are copied channel to channel with FileChannel.transferTo(), so the
+ * bytes are never decoded, and where the operating system supports it (such
+ * as sendfile() or copy_file_range() on Linux) they never pass through the
+ * Java heap at all.
+ *
+ * Files are moved by renaming them where possible, which is a single atomic
+ * operation however large the file.  Only a move to another file system
+ * copies the file.
+ *
+ * Whole directory trees are copied with copyTree(File, File, int), by many
+ * workers at once, so that copying many small files is not bound by the
+ * latency of opening and creating each one in turn.
+ *
+ * Very large files can be copied with copyFileResumable(File, File, String),
+ * which picks up where a failed copy left off, and can digest the file as it
+ * is copied.
+ */
 public class FileCopier
 {
-    private static final int BUFFER_SIZE = 1048576; // 1 MB
+    private static final long CHECKPOINT_INTERVAL = 64L << 20; // 64 MB
+    private static final int  BUFFER_SIZE         = 1 << 20;   // 1 MB
+    private static final int  TAIL_SIZE           = 1 << 16;   // 64 KB checked on resume
+    private static final int  MAX_ZERO_TRANSFERS  = 3;         // then copy through a buffer
 
     public FileCopier() { }
 
     public static void copyFile(String from, String to) throws FileNotFoundException, IOException
     {
-       int        read;
-       char[]     buff = new char[BUFFER_SIZE];
-       FileReader rd   = new FileReader(from);
-       FileWriter wt   = new FileWriter(to);
-
-       while ((read = rd.read(buff, 0, BUFFER_SIZE)) > 0)
-          wt.write(buff, 0, read);
+        copyFile(new File(from), new File(to));
+    }
 
-       wt.close();
-       rd.close();
+    /**
+     * Copy a file, replacing the target if it exists.
+     *
+     * @param  from the file to copy.
+     * @param  to   the file to copy to.
+     * @return the number of bytes copied.
+     * @throws FileNotFoundException if the source can't be read, or the target
+     *         can't be created.
+     */
+    public static long copyFile(File from, File to) throws FileNotFoundException, IOException
+    {
+        return copyFile(from, to, false);
     }
 
     public static void moveFile(String from, String to) throws FileNotFoundException, IOException
     {
-      copyFile(from, to);
+        moveFile(new File(from), new File(to));
+    }
+
+    /**
+     * Move a file, replacing the target if it exists.  The file is renamed
+     * atomically if the target is on the same file system.  Otherwise it is
+     * copied, the copy is forced to disk, and only then is the source deleted,
+     * so a crash part way through never loses the file.
+     *
+     * @param  from the file to move.
+     * @param  to   the file to move to.
+     * @throws FileNotFoundException if the source does not exist.
+     */
+    public static void moveFile(File from, File to) throws FileNotFoundException, IOException
+    {
+        if (!from.exists())
+            throw new FileNotFoundException("Source file does not exist: " + from);
+
+        try
+        {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            // A different file system (or device) - copy instead
+        }
+
+        copyFile(from, to, true);
+
+        if (!from.delete())
+            throw new IOException("Unable to delete source file: " + from);
+    }
+
+    /**
+     * Copy a directory tree, with it's files and last modified times, into the
+     * target directory, which is created if need be.  Files that exist in the
+     * target are replaced.  The files are copied by a FileScanner with a pool
+     * of workers, so several files are open at once.
+     *
+     * @param  from    the directory to copy.
+     * @param  to      the directory to copy to.
+     * @param  workers the number of files to copy at once.
+     * @return the totals and throughput of the copy.
+     * @throws FileNotFoundException if the source is not a directory.
+     */
+    public static FileCopyStats copyTree(File from, File to, int workers) throws FileNotFoundException, IOException
+    {
+        if (!from.isDirectory())
+            throw new FileNotFoundException("Source directory does not exist: " + from);
+
+        long       started = System.nanoTime();
+        TreeCopier copier  = new TreeCopier(from, to);
+
+        copier.setWorkers(workers);
+        try
+        {
+            copier.scan();
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+
+        // Directories last, as copying into them changes their times
+        for (int i = copier.directories.size() - 1; i >= 0; i--)
+        {
+            File directory = copier.directories.get(i);
+            copier.target(directory).setLastModified(directory.lastModified());
+        }
+
+        return new FileCopyStats(copier.files.get(), copier.directories.size(),
+                                 copier.bytes.get(), System.nanoTime() - started);
+    }
+
+    /**
+     * Copy a file so that the copy can be resumed if it fails part way.  The
+     * file is copied to a ".part" file beside the target, which is forced to
+     * disk every 64 MB and the position recorded in a ".part.checkpoint" file.
+     * If the copy is run again after a failure, it carries on from the last
+     * checkpoint, provided the source still has the same length and last
+     * modified time.  Only once the whole file is copied is it renamed to the
+     * target, replacing any existing file.
+     *
+     * If a digest algorithm (such as "SHA-256") is given, the file is digested
+     * as it is copied, so it need not be read again to be checked.  The
+     * checkpoint then also records the digest of the file up to that point.
+     * On resuming, the part already copied is read back and digested, and if
+     * it does not match the checkpoint the copy starts again from the
+     * beginning.  Without a digest, the copy resumes as long as the part file
+     * is at least as long as the checkpoint, and the last 64 KB copied still
+     * match a CRC recorded in the checkpoint.
+     *
+     * @param  from      the file to copy.
+     * @param  to        the file to copy to.
+     * @param  algorithm the MessageDigest algorithm, or null for no digest.
+     * @return the digest of the file, or null if no algorithm was given.
+     * @throws IllegalArgumentException if the digest algorithm is unknown.
+     */
+    public static byte[] copyFileResumable(File from, File to, String algorithm) throws FileNotFoundException, IOException
+    {
+        return copyFileResumable(from, to, algorithm, CHECKPOINT_INTERVAL);
+    }
+
+    static byte[] copyFileResumable(File from, File to, String algorithm, long interval)
+        throws FileNotFoundException, IOException
+    {
+        MessageDigest digest = null;
+        if (algorithm != null)
+        {
+            try
+            {
+                digest = MessageDigest.getInstance(algorithm);
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new IllegalArgumentException("Unknown digest algorithm: " + algorithm, e);
+            }
+        }
+
+        File part       = new File(to.getPath() + ".part");
+        File checkpoint = new File(to.getPath() + ".part.checkpoint");
+
+        try (FileInputStream  in     = new FileInputStream(from);
+             RandomAccessFile output = new RandomAccessFile(part, "rw"))
+        {
+            FileChannel inChannel  = in.getChannel();
+            FileChannel outChannel = output.getChannel();
+            long        length     = from.length();
+            long        modified   = from.lastModified();
+            long        position   = resume(checkpoint, outChannel, length, modified, algorithm, digest);
+
+            outChannel.truncate(position);
+            inChannel.position(position);
+            outChannel.position(position);
+
+            ByteBuffer buffer = (digest != null ? ByteBuffer.allocateDirect(BUFFER_SIZE) : null);
+            long       next   = position + interval;
+            int        zeros  = 0; // transfers in a row that moved nothing
+
+            while (true)
+            {
+                long copied;
+                if (digest == null)
+                {
+                    copied = inChannel.transferTo(position, interval, outChannel);
+                    if (copied > 0)
+                    {
+                        zeros = 0;
+                    }
+                    else if (position >= inChannel.size())
+                    {
+                        break;
+                    }
+                    else if (++zeros >= MAX_ZERO_TRANSFERS)
+                    {
+                        // transferTo() is stuck - copy the next block through a buffer
+                        if (buffer == null)
+                            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+                        copied = copyBuffered(inChannel, position, outChannel, buffer);
+                        if (copied < 0)
+                            break;
+                    }
+                }
+                else
+                {
+                    buffer.clear();
+                    if (inChannel.read(buffer) < 0)
+                        break;
+
+                    buffer.flip();
+                    digest.update(buffer.duplicate());
+                    copied = buffer.remaining();
+                    while (buffer.hasRemaining())
+                        outChannel.write(buffer);
+                }
+
+                position += copied;
+                if (position >= next)
+                {
+                    outChannel.force(false);
+                    saveCheckpoint(checkpoint, length, modified, algorithm, position, peek(digest),
+                                   tailCrc(outChannel, position));
+                    next = position + interval;
+                }
+            }
+
+            outChannel.force(false);
+        }
+
+        Files.move(part.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        checkpoint.delete();
+
+        return (digest != null ? digest.digest() : null);
+    }
+
+    /**
+     * Returns the position to resume a copy from, having digested the part
+     * already copied, or zero if there is no valid checkpoint.
+     */
+    private static long resume(File checkpoint, FileChannel part, long length, long modified,
+                               String algorithm, MessageDigest digest) throws IOException
+    {
+        if (!checkpoint.exists())
+            return 0;
+
+        long   position;
+        byte[] expected;
+        long   tail;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(checkpoint)))
+        {
+            if (in.readLong() != length || in.readLong() != modified ||
+                !in.readUTF().equals(algorithm != null ? algorithm : ""))
+                return 0; // the source has changed, or a different digest
+
+            position = in.readLong();
+            expected = new byte[in.readInt()];
+            in.readFully(expected);
+            tail = in.readLong();
+        }
+        catch (IOException e)
+        {
+            return 0; // unreadable or incomplete checkpoint
+        }
+
+        if (part.size() < position || tailCrc(part, position) != tail)
+            return 0; // the part file was lost, truncated or overwritten
+        if (digest == null)
+            return position;
+        if (expected.length == 0)
+            return 0; // the digest state could not be recorded
+
+        ByteBuffer buffer    = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long       remaining = position;
+
+        part.position(0);
+        while (remaining > 0)
+        {
+            buffer.clear();
+            if (remaining < buffer.capacity())
+                buffer.limit((int) remaining);
+
+            int read = part.read(buffer);
+            if (read < 0)
+                break;
+
+            buffer.flip();
+            digest.update(buffer);
+            remaining -= read;
+        }
+
+        if (remaining == 0 && Arrays.equals(peek(digest), expected))
+            return position;
+
+        digest.reset();
+        return 0;
+    }
+
+    /**
+     * Record the position of a copy, replacing the last checkpoint atomically
+     * so a failure while it is written leaves the last one intact.  The new
+     * checkpoint is forced to disk before it replaces the last one, so a crash
+     * can't leave an empty checkpoint in it's place.
+     */
+    private static void saveCheckpoint(File checkpoint, long length, long modified, String algorithm,
+                                       long position, byte[] digest, long tail) throws IOException
+    {
+        File temp = new File(checkpoint.getPath() + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(temp);
+             DataOutputStream out  = new DataOutputStream(file))
+        {
+            out.writeLong(length);
+            out.writeLong(modified);
+            out.writeUTF(algorithm != null ? algorithm : "");
+            out.writeLong(position);
+            out.writeInt(digest != null ? digest.length : 0);
+            if (digest != null)
+                out.write(digest);
+            out.writeLong(tail);
+
+            out.flush();
+            file.getChannel().force(true);
+        }
+
+        Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the CRC of the last block of the part file before the position
+     * given, which is quick to check on resuming without a digest.
+     */
+    private static long tailCrc(FileChannel part, long position) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TAIL_SIZE, position));
+        long       start  = position - buffer.capacity();
+
+        while (buffer.hasRemaining())
+        {
+            if (part.read(buffer, start + buffer.position()) < 0)
+                break; // shorter than recorded - the CRC won't match
+        }
+
+        CRC32 crc = new CRC32();
+        buffer.flip();
+        crc.update(buffer);
+        return crc.getValue();
+    }
+
+    /**
+     * Returns the digest of the bytes so far, without finishing the digest, or
+     * null if there is no digest or it can't be cloned.
+     */
+    private static byte[] peek(MessageDigest digest)
+    {
+        if (digest == null)
+            return null;
+
+        try
+        {
+            return ((MessageDigest) digest.clone()).digest();
+        }
+        catch (CloneNotSupportedException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Copy a file, forcing the copy to disk before returning if required.
+     */
+    private static long copyFile(File from, File to, boolean force) throws FileNotFoundException, IOException
+    {
+        try (FileInputStream  in  = new FileInputStream(from);
+             FileOutputStream out = new FileOutputStream(to))
+        {
+            long copied = transfer(in.getChannel(), out.getChannel());
+            if (force)
+                out.getChannel().force(true);
+
+            return copied;
+        }
+    }
+
+    /**
+     * Transfer the whole of one channel to another, from it's current
+     * position.  transferTo() may move fewer bytes than asked, so it is called
+     * until the source is exhausted.  If it repeatedly moves nothing although
+     * the source is not exhausted, the rest is copied through a buffer.
+     *
+     * @return the number of bytes transferred.
+     */
+    static long transfer(FileChannel in, FileChannel out) throws IOException
+    {
+        long position = in.position();
+        long size     = in.size();
+        long start    = position;
+        int  zeros    = 0; // transfers in a row that moved nothing
+
+        while (position < size)
+        {
+            long count = in.transferTo(position, size - position, out);
+            if (count <= 0)
+            {
+                // The source shrank while being copied - copy what is left
+                size = in.size();
+                if (position >= size)
+                    break;
+
+                if (++zeros >= MAX_ZERO_TRANSFERS)
+                {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                    while ((count = copyBuffered(in, position, out, buffer)) >= 0)
+                        position += count;
+                    break;
+                }
+                continue;
+            }
+
+            zeros     = 0;
+            position += count;
+        }
+
+        return position - start;
+    }
+
+    /**
+     * Copy up to a buffer of bytes from the position given in one channel, to
+     * the current position of another.
+     *
+     * @return the number of bytes copied, or -1 at the end of the source.
+     */
+    private static long copyBuffered(FileChannel in, long position, FileChannel out, ByteBuffer buffer)
+        throws IOException
+    {
+        buffer.clear();
+
+        int read = in.read(buffer, position);
+        if (read < 0)
+            return -1;
+
+        buffer.flip();
+        while (buffer.hasRemaining())
+            out.write(buffer);
+
+        return read;
+    }
+
+    /**
+     * Creates each directory of the tree as it is scanned, and copies each file
+     * on the scanner's workers.
+     */
+    private static final class TreeCopier extends FileScanner
+    {
+        private final Path from;
+        private final File to;
+        final List<File>   directories = new ArrayList<File>();
+        final AtomicLong   files       = new AtomicLong();
+        final AtomicLong   bytes       = new AtomicLong();
+
+        TreeCopier(File from, File to)
+        {
+            super(from.getPath(), "*", false, true);
+
+            this.from = from.toPath();
+            this.to   = to;
+        }
+
+        File target(File file)
+        {
+            return new File(to, from.relativize(file.toPath()).toString());
+        }
+
+        protected void scanDirectory(File directory, boolean includeSubs)
+        {
+            try
+            {
+                Files.createDirectories(target(directory).toPath());
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+
+            directories.add(directory);
+            super.scanDirectory(directory, includeSubs);
+        }
+
+        protected void scanFile(File file)
+        {
+            try
+            {
+                File target = target(file);
 
-      File fromFile = new File(from);
-      if (fromFile.exists())
-      {
-        if (!fromFile.delete())
-          throw new IOException("Unable to delete source file: " + from);
-      }
-      else
-        throw new IOException("Source file does not exist: " + from);
+                bytes.addAndGet(copyFile(file, target));
+                target.setLastModified(file.lastModified());
+                files.incrementAndGet();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 }
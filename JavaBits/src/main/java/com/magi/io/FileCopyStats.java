@@ -0,0 +1,67 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.io;
+
+/**
+ * The totals of a tree copy, and the throughput it achieved.
+ *
+ * @author patkins
+ * @see    FileCopier#copyTree(java.io.File, java.io.File, int)
+ */
+public final class FileCopyStats
+{
+    private final long fileCount;
+    private final long directoryCount;
+    private final long byteCount;
+    private final long elapsedNanos;
+
+    FileCopyStats(long fileCount, long directoryCount, long byteCount, long elapsedNanos)
+    {
+        this.fileCount      = fileCount;
+        this.directoryCount = directoryCount;
+        this.byteCount      = byteCount;
+        this.elapsedNanos   = elapsedNanos;
+    }
+
+    /** Returns the number of files copied. */
+    public long getFileCount()
+    {
+        return fileCount;
+    }
+
+    /** Returns the number of directories created, including the top one. */
+    public long getDirectoryCount()
+    {
+        return directoryCount;
+    }
+
+    /** Returns the number of bytes copied. */
+    public long getByteCount()
+    {
+        return byteCount;
+    }
+
+    /** Returns the time the copy took, in nanoseconds. */
+    public long getElapsedNanos()
+    {
+        return elapsedNanos;
+    }
+
+    /** Returns the bytes copied per second, or zero if no time was taken. */
+    public double getBytesPerSecond()
+    {
+        return (elapsedNanos == 0 ? 0.0 : byteCount * 1e9 / elapsedNanos);
+    }
+
+    /** Returns the files copied per second, or zero if no time was taken. */
+    public double getFilesPerSecond()
+    {
+        return (elapsedNanos == 0 ? 0.0 : fileCount * 1e9 / elapsedNanos);
+    }
+
+    public String toString()
+    {
+        return "FileCopyStats[files=" + fileCount + ", directories=" + directoryCount +
+               ", bytes=" + byteCount + ", elapsedNanos=" + elapsedNanos + "]";
+    }
+}
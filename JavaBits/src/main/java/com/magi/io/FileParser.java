@@ -16,16 +16,40 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Parse a text file, line by line.
  * This class is designed for easy extension by application specific sub-classes.
  *
+ * Large files, such as server logs, can be parsed on many threads by setting
+ * setParallelism(int).  The file is then memory mapped and split into chunks
+ * that end on a line break, and each chunk is passed to
+ * parseChunk(ByteBuffer) on a pool thread, which by default calls
+ * parseLine(String) for each of it's lines.  The result of each chunk is then
+ * passed to mergeChunk(Object) on the parsing thread, in file order if
+ * setOrdered(boolean) is set.
+ *
  * @author P.Atkinson
  */
 public class FileParser
 {
-    private File toParse;
+    private static final int DEFAULT_CHUNK_SIZE = 8 << 20; // 8 MB
+
+    private File    toParse;
+    private int     parallelism = 0;
+    private boolean ordered     = false;
+    private int     chunkSize   = DEFAULT_CHUNK_SIZE;
 
     /**
      * Create a file parser.
@@ -49,6 +73,80 @@ public class FileParser
         this(new File(toParse));
     }
 
+    /**
+     * Returns the number of threads the file is parsed on, or zero if it is
+     * parsed line by line on the calling thread.
+     *
+     * @return the parallelism.
+     */
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of threads the file is parsed on.  A value greater than
+     * one memory maps the file and parses it in chunks in parallel, so
+     * parseLine(String) and parseChunk(ByteBuffer) must then be thread safe.
+     * The file must be in a charset where a line feed is a single byte, such
+     * as UTF-8 or ISO-8859-1.
+     *
+     * @param parallelism the number of parsing threads.
+     */
+    public void setParallelism(int parallelism)
+    {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Returns true if chunk results are merged in file order.
+     *
+     * @return true if ordered.
+     */
+    public boolean getOrdered()
+    {
+        return ordered;
+    }
+
+    /**
+     * Set whether the chunk results of a parallel parse are passed to
+     * mergeChunk(Object) in the order the chunks appear in the file, rather
+     * than as they are completed.  A sub-class that needs every line in order
+     * can return the results of it's lines from parseChunk(ByteBuffer), and
+     * handle them in mergeChunk(Object).
+     *
+     * @param ordered true to merge in file order.
+     */
+    public void setOrdered(boolean ordered)
+    {
+        this.ordered = ordered;
+    }
+
+    /**
+     * Returns the approximate size, in bytes, of the chunks of a parallel parse.
+     *
+     * @return the chunk size.
+     */
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * Set the approximate size, in bytes, of the chunks of a parallel parse.
+     * Each chunk is extended to the end of the line it finishes in.
+     *
+     * @param  chunkSize the chunk size, 8 MB by default.
+     * @throws IllegalArgumentException if the chunk size is not positive.
+     */
+    public void setChunkSize(int chunkSize)
+    {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("The chunk size must be positive: " + chunkSize);
+
+        this.chunkSize = chunkSize;
+    }
+
     /**
      * Begin parsing the file.
      *
@@ -62,6 +160,12 @@ public class FileParser
         if (toParse.isDirectory())
             throw new FileParserException("The file to parse is actually a directory [ " + toParse + " ].");
 
+        if (parallelism > 1)
+        {
+            parseMapped();
+            return;
+        }
+
         try
         {
             FileReader     fReader = new FileReader(toParse);
@@ -75,12 +179,12 @@ public class FileParser
         }
         catch (FileNotFoundException e)
         {
-            new FileParserException( "File not found error while parsing the file [" +
+            throw new FileParserException( "File not found error while parsing the file [" +
                                      toParse + "]: " + e.getMessage(), e);
         }
         catch (IOException e)
         {
-            new FileParserException( "I/O error while parsing the file [" +
+            throw new FileParserException( "I/O error while parsing the file [" +
                                      toParse + "]: " + e.getMessage(), e);
         }
     }
@@ -106,6 +210,181 @@ public class FileParser
         }
     }
 
+    /**
+     * Parse the file in chunks, on a pool of parallelism threads.  No more than
+     * two chunks per thread are submitted ahead of the results merged, so the
+     * results held, and the chunks mapped, stay bounded however large the file.
+     *
+     * @throws FileParserException if an error occurs during parsing.
+     */
+    protected void parseMapped() throws FileParserException
+    {
+        Charset charset = Charset.defaultCharset();
+        if ("\n".getBytes(charset).length != 1)
+            throw new FileParserException("The file to parse can't be split by line in the charset " + charset);
+
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        try (FileChannel channel = FileChannel.open(toParse.toPath(), StandardOpenOption.READ))
+        {
+            ArrayDeque<Future<Object>>        futures    = new ArrayDeque<Future<Object>>(); // if ordered
+            ExecutorCompletionService<Object> completion = new ExecutorCompletionService<Object>(pool);
+            int                               window     = 2 * parallelism;
+            int                               pending    = 0;
+            long                              size       = channel.size();
+            long                              start      = 0;
+
+            while (start < size)
+            {
+                final long position = start;
+                final long end      = lineEnd(channel, Math.min(start + chunkSize, size), size);
+
+                if (pending == window)
+                {
+                    mergeChunk(ordered ? futures.poll().get() : completion.take().get());
+                    pending--;
+                }
+
+                Callable<Object> task = new Callable<Object>()
+                {
+                    public Object call() throws Exception
+                    {
+                        return parseChunk(channel.map(FileChannel.MapMode.READ_ONLY, position, end - position));
+                    }
+                };
+
+                if (ordered)
+                    futures.add(pool.submit(task));
+                else
+                    completion.submit(task);
+
+                pending++;
+                start = end;
+            }
+
+            for (; pending > 0; pending--)
+                mergeChunk(ordered ? futures.poll().get() : completion.take().get());
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof FileParserException)
+                throw (FileParserException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+
+            throw new FileParserException( "I/O error while parsing the file [" +
+                                           toParse + "]: " + cause.getMessage(), cause);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new FileParserException("Interrupted while parsing the file [" + toParse + "]", e);
+        }
+        catch (IOException e)
+        {
+            throw new FileParserException( "I/O error while parsing the file [" +
+                                           toParse + "]: " + e.getMessage(), e);
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the position just past the first line feed at or after the
+     * position given, or the size of the file if there is none.
+     */
+    private static long lineEnd(FileChannel channel, long position, long size) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        while (position < size)
+        {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+                break;
+
+            for (int i = 0; i < read; i++)
+            {
+                if (buffer.get(i) == '\n')
+                    return position + i + 1;
+            }
+            position += read;
+        }
+
+        return size;
+    }
+
+    /**
+     * Parses a chunk of whole lines of a parallel parse, on a pool thread.
+     * This decodes each line in the platform's default charset, as FileReader
+     * does, splitting lines as BufferedReader.readLine() does, and calls
+     * parseLine(String) for it.  It returns null.  Sub-classes can override
+     * this to parse the bytes directly, or to gather a result for the chunk,
+     * such as counts, which is then passed to mergeChunk(Object).
+     *
+     * @param  chunk the bytes of the chunk.
+     * @return the result of the chunk, or null.
+     * @throws FileParserException if there is any syntactical problem or
+     *         equivalent during parsing.
+     */
+    protected Object parseChunk(ByteBuffer chunk) throws FileParserException
+    {
+        Charset charset = Charset.defaultCharset();
+        byte[]  bytes;
+        int     start;
+        int     end;
+
+        if (chunk.hasArray())
+        {
+            bytes = chunk.array();
+            start = chunk.arrayOffset() + chunk.position();
+            end   = chunk.arrayOffset() + chunk.limit();
+        }
+        else
+        {
+            bytes = new byte[chunk.remaining()];
+            chunk.duplicate().get(bytes);
+            start = 0;
+            end   = bytes.length;
+        }
+
+        // A line feed or carriage return is always a single byte, so lines
+        // can be split before they are decoded
+        for (int i = start; i < end; i++)
+        {
+            byte b = bytes[i];
+            if (b == '\n' || b == '\r')
+            {
+                parseLine(new String(bytes, start, i - start, charset));
+
+                if (b == '\r' && i + 1 < end && bytes[i + 1] == '\n')
+                    i++;
+                start = i + 1;
+            }
+        }
+
+        if (start < end)
+            parseLine(new String(bytes, start, end - start, charset));
+
+        return null;
+    }
+
+    /**
+     * Merges the result of a chunk of a parallel parse, on the parsing thread.
+     * This does nothing by default.
+     *
+     * @param  result the result returned by parseChunk(ByteBuffer).
+     * @throws FileParserException if the result can't be merged.
+     */
+    protected void mergeChunk(Object result) throws FileParserException
+    {
+    }
+
     /**
      * Parses a single line of text from the input text file.
      * Sub-classes extending the FileParser can easily override this method to
@@ -0,0 +1,215 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates the files a FileScanner would scan, in the same order, reading
+ * directories only as the iteration reaches them.
+ *
+ * The iterator holds one open directory for each level of the tree it is
+ * currently in (or, for a sorted scan, one directory listing, or with a sort
+ * memory limit, one ExternalFileSorter).  These are released as each directory
+ * is finished, and all at once by close(), which should be called if the
+ * iteration is abandoned part way.  A snapshot set on the scanner is ignored.
+ *
+ * @author patkins
+ * @see    FileScanner#iterator()
+ */
+final class FileScanIterator implements Iterator<Path>, Closeable
+{
+    private final FileScanner   scanner;
+    private final Deque<Level>  levels = new ArrayDeque<Level>();
+    private Path                next   = null;
+
+    FileScanIterator(FileScanner scanner)
+    {
+        this.scanner = scanner;
+
+        enter(scanner.getPath());
+    }
+
+    public boolean hasNext()
+    {
+        if (next == null)
+            advance();
+
+        return (next != null);
+    }
+
+    public Path next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        Path found = next;
+        next = null;
+        return found;
+    }
+
+    /**
+     * Release any directories still open.
+     */
+    public void close()
+    {
+        while (!levels.isEmpty())
+            levels.pop().close();
+    }
+
+    /**
+     * Find the next file, descending into sub-directories as they are found.
+     */
+    private void advance()
+    {
+        while (next == null && !levels.isEmpty())
+        {
+            Level level = levels.peek();
+            File  file  = level.next();
+
+            if (file == null)
+                levels.pop().close(); // directory finished
+            else if (!file.isDirectory())
+                next = file.toPath();
+            else if (scanner.getIncludeSubdirs() && !scanner.isPruned(file))
+                enter(file);
+        }
+    }
+
+    /**
+     * Start reading a directory.  An unreadable directory is skipped.
+     */
+    private void enter(File directory)
+    {
+        if (scanner.getSorted() && scanner.getSortMemoryLimit() > 0 && scanner.isDefaultSorter())
+        {
+            spill(directory);
+            return;
+        }
+
+        if (scanner.getSorted())
+        {
+            File[] files = scanner.listDirectory(directory);
+            if (files != null)
+                levels.push(new Level(null, Arrays.asList(files).iterator(), null));
+            return;
+        }
+
+        try
+        {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath());
+            levels.push(new Level(stream, null, null));
+        }
+        catch (IOException e)
+        {
+            // unreadable - skipped, as FileScanner.scan() would
+        }
+    }
+
+    /**
+     * Start reading a sorted directory through an ExternalFileSorter, holding
+     * no more than the sort memory limit of files in memory.
+     */
+    private void spill(File directory)
+    {
+        ExternalFileSorter sorter = new ExternalFileSorter(scanner.getSortMemoryLimit());
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath()))
+        {
+            for (Path entry : stream)
+            {
+                File file = ScannedFile.of(entry);
+                if (scanner.getFileFilter() == null || scanner.getFileFilter().accept(file))
+                    sorter.add(file);
+            }
+        }
+        catch (IOException | DirectoryIteratorException e)
+        {
+            sorter.close();
+            return; // unreadable - skipped, as FileScanner.scan() would
+        }
+        catch (RuntimeException e)
+        {
+            sorter.close();
+            throw e;
+        }
+
+        levels.push(new Level(null, sorter.sorted(), sorter));
+    }
+
+    /**
+     * One directory being iterated, either streamed (unsorted), listed, or read
+     * back from a sorter.
+     */
+    private final class Level
+    {
+        private final DirectoryStream<Path> stream;
+        private final Iterator<Path>        paths;
+        private final Iterator<File>        files;
+        private final ExternalFileSorter    sorter;
+
+        Level(DirectoryStream<Path> stream, Iterator<File> files, ExternalFileSorter sorter)
+        {
+            this.stream = stream;
+            this.paths  = (stream != null ? stream.iterator() : null);
+            this.files  = files;
+            this.sorter = sorter;
+        }
+
+        /**
+         * Returns the next file in the directory accepted by the filter, or
+         * null when there are no more.
+         */
+        File next()
+        {
+            if (files != null)
+                return (files.hasNext() ? files.next() : null);
+
+            try
+            {
+                while (paths.hasNext())
+                {
+                    File file = ScannedFile.of(paths.next());
+
+                    if (scanner.getFileFilter() == null || scanner.getFileFilter().accept(file))
+                        return file;
+                }
+            }
+            catch (DirectoryIteratorException e)
+            {
+                // read error - treat the rest of the directory as unreadable
+            }
+
+            return null;
+        }
+
+        void close()
+        {
+            if (sorter != null)
+                sorter.close();
+
+            if (stream == null)
+                return;
+
+            try
+            {
+                stream.close();
+            }
+            catch (IOException e)
+            {
+                // nothing more to release
+            }
+        }
+    }
+}
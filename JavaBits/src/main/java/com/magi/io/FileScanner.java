@@ -2,8 +2,31 @@ package com.magi.io;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Scans a directory of files, and sub-directories of files if required.
@@ -11,7 +34,45 @@ import java.util.Comparator;
  * FileFilter of your choice.
  *
  * The easiest way to implement the FileScanner is to extend this class, and
- * override the scanFile(File) method.
+ * override the scanFile(File) method.  Alternatively the files can be pulled
+ * from the scanner with stream() or iterator(), which only read as much of the
+ * directory tree as is consumed.
+ *
+ * Large directory trees, especially on network file systems, can be scanned
+ * in parallel with setParallelism(int), so that many directories are listed
+ * at once.  Unless the scan is sorted, scanFile(File) is then called from many
+ * threads at once and must be thread safe.  A sorted parallel scan still
+ * lists directories in parallel, but calls scanFile(File) on the scanning
+ * thread, in exactly the same order as a sequential scan.
+ *
+ * Directories are read with NIO, and each file found is stat'ed just once.
+ * The File objects passed to the file filter, the file sorter and
+ * scanFile(File) hold the attributes read, so calling isDirectory(), isFile(),
+ * length() or lastModified() on them does not touch the file system again.
+ * An unsorted sequential scan also streams each directory rather than listing
+ * it into an array, so memory use stays flat for huge directories.
+ *
+ * A tree that is scanned regularly can be rescanned incrementally, by setting
+ * a ScanSnapshot with setSnapshot(ScanSnapshot).  Only new and changed files
+ * are then passed to scanFile(File), and directories that have not been
+ * modified since the last scan are not read at all.
+ *
+ * Whole sub-trees can be left out of a scan, before they are read, by
+ * excluding directories by name with setExcludedDirectories(String[]), such
+ * as ".git" or "node_modules", or by limiting the depth of the scan with
+ * setMaxDepth(int).
+ *
+ * Sorting with the default FileScannerSort works out each file's sort key
+ * once, rather than on every comparison.  For directories too large to sort
+ * comfortably in memory, setSortMemoryLimit(int) bounds the number of files
+ * held at once, spilling sorted runs to temporary files and merging them.
+ *
+ * When scanFile(File) does real work on each file, such as decoding it, the
+ * files can be processed by a pool of worker threads with setWorkers(int),
+ * while the scanning thread carries on walking the tree.  scanFile(File) must
+ * then be thread safe.  With setWorkersOrdered(boolean), each file's result,
+ * from scanFileAsync(File), is handed to scanFileCompleted(File, Object) on
+ * the scanning thread in scan order.
  *
  * @author Paul Atkinson
  */
@@ -22,6 +83,17 @@ public class FileScanner {
     protected boolean    includeSubdirs = false;
     protected FileFilter fileFilter     = null;
     protected Comparator fileSorter     = null;
+    protected int        parallelism    = 0;
+    protected ScanSnapshot snapshot     = null;
+    protected String[]   excludedDirs   = null;
+    protected int        maxDepth       = -1;
+    protected int        sortMemoryLimit = 0;
+    protected int        workers        = 0;
+    protected boolean    workersOrdered = false;
+
+    private Pipeline     pipeline       = null;
+
+    private GlobAutomaton excludeMatcher = null;
 
     /**
      * Create a File Scanner for the directory specified.
@@ -200,11 +272,344 @@ public class FileScanner {
         return null;
     }
 
+    /**
+     * Returns the DOS-style patterns of the directory names excluded from the
+     * scan, or null if there are none.
+     *
+     * @return the patterns or null.
+     */
+    public String[] getExcludedDirectories() {
+        return excludedDirs;
+    }
+
+    /**
+     * Sets DOS-style patterns of directory names to exclude from the scan, for
+     * example { ".git", "node_modules", "target" }.  An excluded directory is
+     * never read, so nothing below it is scanned.  The patterns are matched
+     * against each sub-directory's name, not the top directory scanned.
+     *
+     * @param patterns the directory name patterns, or null to exclude none.
+     */
+    public void setExcludedDirectories(String[] patterns) {
+        this.excludeMatcher = (patterns != null && patterns.length > 0 ?
+                               new GlobAutomaton(patterns, false) : null);
+        this.excludedDirs   = patterns;
+    }
+
+    /**
+     * Returns the maximum depth of sub-directories scanned, or -1 if there is
+     * no limit.
+     *
+     * @return the maximum depth.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Sets the maximum depth of sub-directories scanned, where zero is the
+     * directory scanned only, and one includes it's immediate sub-directories.
+     * Directories deeper than this are never read.  This only applies if
+     * sub-directories are included.
+     *
+     * @param maxDepth the maximum depth, or -1 for no limit.
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Returns true if a sub-directory is excluded from the scan, by name or by
+     * depth, so should not be read.  The directory scanned is never pruned.
+     *
+     * @param  directory the directory found.
+     * @return true if the directory should be skipped.
+     */
+    protected boolean isPruned(File directory) {
+        GlobAutomaton excludes = excludeMatcher;
+        if (excludes == null && maxDepth < 0)
+            return false;
+
+        int depth = directory.toPath().getNameCount() - path.toPath().getNameCount();
+        if (depth <= 0)
+            return false;
+
+        if (maxDepth >= 0 && depth > maxDepth)
+            return true;
+
+        return (excludes != null && excludes.matches(directory.getName()));
+    }
+
+    /**
+     * Returns the most files of one directory held in memory by a sorted scan,
+     * or zero if there is no limit.
+     *
+     * @return the sort memory limit.
+     */
+    public int getSortMemoryLimit() {
+        return sortMemoryLimit;
+    }
+
+    /**
+     * Sets the most files of one directory held in memory by a sorted scan.
+     * A directory with more files than this is sorted in runs of this many,
+     * spilled to temporary files, and merged as it is scanned.  This only
+     * applies to sequential scans with the default FileScannerSort.
+     *
+     * @param sortMemoryLimit the number of files, or zero for no limit.
+     */
+    public void setSortMemoryLimit(int sortMemoryLimit) {
+        this.sortMemoryLimit = sortMemoryLimit;
+    }
+
+    /**
+     * Returns the number of threads used to scan directories in parallel, or
+     * zero if the scan is sequential.
+     *
+     * @return the parallelism.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of threads used to scan directories in parallel.  As
+     * scanning is bound by I/O latency rather than CPU, this can usefully be
+     * more than the number of processors.  A value of one or less scans
+     * sequentially on the calling thread, which is the default.
+     *
+     * Note that a parallel scan does not call scanDirectory(File, boolean) or
+     * scanFiles(File[]), only scanFile(File).
+     *
+     * @param parallelism the number of scanning threads.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Returns the number of worker threads that scanFile(File) is run on, or
+     * zero if it is run by the scanning threads.
+     *
+     * @return the number of workers.
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Set the number of worker threads that scanFile(File) is run on, so that
+     * processing files overlaps with walking the tree.  The workers take files
+     * from a short queue, and when it is full the scanning thread runs
+     * scanFile(File) itself, so a slow scanFile(File) holds back the walk
+     * rather than piling up files in memory.  A value of one or less calls
+     * scanFile(File) on the scanning thread, which is the default.
+     *
+     * scanFile(File) must be thread safe with workers, and scan() only returns
+     * once every file has been processed.  If scanFile(File) throws, no more
+     * files are queued and scan() throws the first exception.
+     *
+     * @param workers the number of worker threads.
+     */
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Returns true if the results of the workers are completed in scan order.
+     *
+     * @return true if ordered.
+     */
+    public boolean getWorkersOrdered() {
+        return workersOrdered;
+    }
+
+    /**
+     * Set whether the results of the workers are completed in scan order.  If
+     * so, scanFileCompleted(File, Object) is called on the scanning thread, in
+     * the order the files were found, with the result of scanFileAsync(File)
+     * for each, so it need not be thread safe.  Otherwise it is called on the
+     * worker as soon as the file is processed.
+     *
+     * Ordering only holds back completions, not the workers, but a slow file
+     * stops more than a few files being queued past it.  It has no effect on an
+     * unsorted parallel scan, whose files have no order.
+     *
+     * @param ordered true to complete files in scan order.
+     */
+    public void setWorkersOrdered(boolean ordered) {
+        this.workersOrdered = ordered;
+    }
+
+    /**
+     * Returns the snapshot used for incremental scans, or null if every scan
+     * processes every file.
+     *
+     * @return the snapshot or null.
+     */
+    public ScanSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Set a snapshot to scan incrementally.  Each scan() then only passes files
+     * that are new, or whose size, last modified time or file key (inode) has
+     * changed since the snapshot was taken, to scanFile(File), and updates the
+     * snapshot to the tree as scanned.  Save the snapshot between runs with
+     * ScanSnapshot.save(File).
+     *
+     * A directory whose last modified time has not changed has had no files
+     * added, removed or renamed, so it is not read at all, and the files
+     * recorded in it are not checked.  This means a file rewritten in place,
+     * without a change to it's directory, is only picked up once it's directory
+     * changes.  Files modified within a couple of seconds of a scan are treated
+     * as unsettled, as they may change again within the same clock tick, so
+     * they are passed to scanFile(File) again by the next scan, and their
+     * directory is read again to find them.  The snapshot records the files
+     * that matched the file filter, so use a new snapshot if the filter
+     * changes.  Incremental scans are sequential, whatever the parallelism set.
+     *
+     * @param snapshot the snapshot, or null for full scans.
+     */
+    public void setSnapshot(ScanSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
     /**
      * SCAN the directory(ies).
      */
     public void scan() {
-        scanDirectory(path, true);
+        if (workers > 1) {
+            boolean ordered = workersOrdered && (sorted || parallelism <= 1 || snapshot != null);
+            pipeline = new Pipeline(workers, ordered);
+        }
+
+        try {
+            if (snapshot != null)
+                scanIncremental();
+            else if (parallelism > 1)
+                scanParallel();
+            else
+                scanDirectory(path, true);
+
+            if (pipeline != null)
+                pipeline.finish();
+        }
+        finally {
+            if (pipeline != null) {
+                pipeline.abort();
+                pipeline = null;
+            }
+        }
+    }
+
+    /**
+     * Scan the directory tree against the snapshot, and update the snapshot.
+     */
+    protected void scanIncremental() {
+        Map<String, ScanSnapshot.Directory> scanned = new HashMap<String, ScanSnapshot.Directory>();
+
+        scanIncremental(ScannedFile.of(path), scanned, System.currentTimeMillis());
+        snapshot.setDirectories(scanned);
+    }
+
+    /**
+     * Scan a directory against the snapshot, recording it in the directories
+     * scanned.
+     *
+     * @param directory the directory to scan.
+     * @param scanned   the directories scanned so far.
+     * @param started   the time the scan started.
+     */
+    private void scanIncremental(ScannedFile directory, Map<String, ScanSnapshot.Directory> scanned,
+                                 long started) {
+        String                 key      = directory.getPath();
+        ScanSnapshot.Directory previous = snapshot.getDirectory(key);
+
+        if (previous != null && previous.isUnchanged(directory)) {
+            // Same entries as last time - only the sub-directories need a look
+            scanned.put(key, previous);
+
+            if (includeSubdirs) {
+                for (ScanSnapshot.Entry entry : previous.entries) {
+                    if (entry.directory) {
+                        ScannedFile subdir = ScannedFile.of(new File(directory, entry.name).toPath());
+                        if (subdir.isDirectory() && !isPruned(subdir))
+                            scanIncremental(subdir, scanned, started);
+                    }
+                }
+            }
+            return;
+        }
+
+        File[] files = listDirectory(directory);
+        if (files == null)
+            return;
+
+        Map<String, ScanSnapshot.Entry> recorded = (previous != null ? previous.byName() : null);
+        ScanSnapshot.Entry[]            entries  = new ScanSnapshot.Entry[files.length];
+
+        for (int i = 0; i < files.length; i++) {
+            ScannedFile file = ScannedFile.of(files[i]);
+            entries[i] = new ScanSnapshot.Entry(file, started);
+
+            if (file.isDirectory()) {
+                if (includeSubdirs && !isPruned(file))
+                    scanIncremental(file, scanned, started);
+            }
+            else {
+                ScanSnapshot.Entry last = (recorded != null ? recorded.get(file.getName()) : null);
+                if (last == null || !last.isUnchanged(file))
+                    dispatchFile(file);
+            }
+        }
+
+        scanned.put(key, new ScanSnapshot.Directory(directory, entries, started));
+    }
+
+    /**
+     * Returns a lazy Stream of the files that scan() would pass to scanFile(File),
+     * in the same order.  Directories are only read as the stream reaches them,
+     * so a short-circuiting operation such as findFirst() or limit() stops the
+     * scan early.  As in scan(), a sorted directory larger than the sort memory
+     * limit is sorted by spilling runs to temporary files.
+     *
+     * A snapshot set for incremental scans does not apply: the stream holds
+     * every matching file, whether it has changed or not, and the snapshot is
+     * neither read nor updated.
+     *
+     * The stream is sequential, whatever the parallelism set, although it can
+     * be made parallel to process the files found.  It holds open directories
+     * until it is fully consumed or closed, so it should be used in a
+     * try-with-resources statement.
+     *
+     * @return a stream of the matching files.
+     */
+    public Stream<Path> stream() {
+        final FileScanIterator it = new FileScanIterator(this);
+        Spliterator<Path> spliterator = Spliterators.spliteratorUnknownSize(it,
+            Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL);
+
+        return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+            public void run() {
+                it.close();
+            }
+        });
+    }
+
+    /**
+     * Returns a lazy Iterator of the files that scan() would pass to
+     * scanFile(File), in the same order.  Directories are only read as the
+     * iteration reaches them.  If the iteration is abandoned before the end,
+     * close the iterator (it is Closeable) to release open directories and
+     * temporary sort files.  As with stream(), a snapshot does not apply, so
+     * every matching file is returned.
+     *
+     * @return an iterator of the matching files.
+     * @see    #stream()
+     */
+    public Iterator<Path> iterator() {
+        return new FileScanIterator(this);
     }
 
     /**
@@ -214,14 +619,234 @@ public class FileScanner {
      * @param includeSubs scan recursively.
      */
     protected void scanDirectory(File directory, boolean includeSubs) {
-        if (includeSubs) {
-            File[] dirFiles = directory.listFiles(fileFilter);
-            if (dirFiles != null) {
-                if (sorted)
-                    Arrays.sort(dirFiles, fileSorter);
+        if (includeSubs && !isPruned(directory)) {
+            if (!sorted) {
+                streamDirectory(directory);
+                return;
+            }
+
+            if (sortMemoryLimit > 0 && isDefaultSorter()) {
+                spillDirectory(directory);
+                return;
+            }
 
+            File[] dirFiles = listDirectory(directory);
+            if (dirFiles != null)
                 scanFiles(dirFiles); // recurse downward
+        }
+    }
+
+    /**
+     * Scan the files and sub-directories of a directory as they are read,
+     * without listing them first.  As with scanFiles(File[]), sub-directories
+     * are scanned as they are found.
+     *
+     * @param directory the directory path to scan.
+     */
+    private void streamDirectory(File directory) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath())) {
+            for (Path entry : stream) {
+                File file = ScannedFile.of(entry);
+                if (fileFilter != null && !fileFilter.accept(file))
+                    continue;
+
+                if (file.isDirectory())
+                    scanDirectory(file, includeSubdirs);
+                else
+                    dispatchFile(file);
+            }
+        }
+        catch (IOException | DirectoryIteratorException e) {
+            // unreadable - skipped, as File.listFiles() would
+        }
+    }
+
+    /**
+     * Scan the files and sub-directories of a directory in sorted order, holding
+     * no more than the sort memory limit in memory at once.
+     *
+     * @param directory the directory path to scan.
+     */
+    private void spillDirectory(File directory) {
+        try (ExternalFileSorter sorter = new ExternalFileSorter(sortMemoryLimit)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath())) {
+                for (Path entry : stream) {
+                    File file = ScannedFile.of(entry);
+                    if (fileFilter == null || fileFilter.accept(file))
+                        sorter.add(file);
+                }
+            }
+            catch (IOException | DirectoryIteratorException e) {
+                return; // unreadable - skipped, as File.listFiles() would
             }
+
+            Iterator<File> files = sorter.sorted();
+            while (files.hasNext()) {
+                File file = files.next();
+                if (file.isDirectory())
+                    scanDirectory(file, includeSubdirs);
+                else
+                    dispatchFile(file);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the file sorter is a plain FileScannerSort, whose order
+     * is known, rather than a custom Comparator.
+     */
+    boolean isDefaultSorter() {
+        return (fileSorter != null && fileSorter.getClass() == FileScannerSort.class);
+    }
+
+    /**
+     * List the files and sub-directories of a directory that match the file
+     * filter, sorted if required.
+     *
+     * @param  directory the directory to list.
+     * @return the files, or null if the directory could not be read.
+     */
+    protected File[] listDirectory(File directory) {
+        File[] dirFiles = ScannedFile.listFiles(directory, fileFilter);
+        if (dirFiles != null && sorted) {
+            if (isDefaultSorter())
+                FileScannerSort.sort(dirFiles);
+            else
+                Arrays.sort(dirFiles, fileSorter);
+        }
+
+        return dirFiles;
+    }
+
+    /**
+     * Scan the directory tree on a pool of parallelism threads.
+     */
+    protected void scanParallel() {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            if (sorted) {
+                pool.invoke(new SortedScanTask());
+            }
+            else {
+                pool.invoke(new ScanTask(path));
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Scan the files of a directory listed by a ListTask, in sorted order,
+     * waiting for each sub-directory to be listed as it is reached.  Only the
+     * next few sub-directories, two per thread, are listed ahead of the scan,
+     * so no more than that many listings are held for each directory level
+     * being scanned.
+     *
+     * @param task the task listing the directory.
+     */
+    private void scanListed(ListTask task) {
+        task.join();
+
+        File[] files = task.files;
+        if (files == null)
+            return;
+
+        ListTask[] subtasks = new ListTask[files.length];
+        int        window   = Math.max(1, 2 * parallelism);
+        int        next     = 0; // the next file to check for a sub-directory
+        int        listing  = 0; // the sub-directory tasks forked and not scanned
+
+        for (int i = 0; i < files.length; i++) {
+            for (; next < files.length && listing < window; next++) {
+                if (includeSubdirs && files[next].isDirectory() && !isPruned(files[next])) {
+                    subtasks[next] = new ListTask(files[next]);
+                    subtasks[next].fork();
+                    listing++;
+                }
+            }
+
+            if (subtasks[i] != null) {
+                ListTask subtask = subtasks[i];
+                subtasks[i] = null; // release the listing once scanned
+                listing--;
+                scanListed(subtask);
+            }
+            else if (!files[i].isDirectory()) {
+                dispatchFile(files[i]);
+            }
+        }
+    }
+
+    /**
+     * Lists a directory, and scans it's files on the pool thread, while it's
+     * sub-directories are scanned by further tasks.
+     */
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File directory;
+
+        ScanTask(File directory) {
+            this.directory = directory;
+        }
+
+        protected void compute() {
+            File[] files = listDirectory(directory);
+            if (files == null)
+                return;
+
+            List<ScanTask> subtasks = new ArrayList<ScanTask>();
+            for (int i = 0; i < files.length; i++) {
+                if (files[i].isDirectory()) {
+                    if (includeSubdirs && !isPruned(files[i])) {
+                        ScanTask subtask = new ScanTask(files[i]);
+                        subtask.fork();
+                        subtasks.add(subtask);
+                    }
+                }
+                else {
+                    dispatchFile(files[i]);
+                }
+            }
+
+            for (ScanTask subtask : subtasks)
+                subtask.join();
+        }
+    }
+
+    /**
+     * Walks the tree in sorted order, passing every file to scanFile(File) from
+     * this one task, while the directories are listed ahead of it by ListTasks
+     * forked into the same pool.
+     */
+    private class SortedScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        protected void compute() {
+            ListTask root = new ListTask(path);
+            root.fork();
+            scanListed(root);
+        }
+    }
+
+    /**
+     * Lists and sorts a directory, without scanning any files or listing it's
+     * sub-directories.  scanListed(ListTask) forks the tasks for the
+     * sub-directories as the scan reaches the directory.
+     */
+    private class ListTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File directory;
+        File[]             files;
+
+        ListTask(File directory) {
+            this.directory = directory;
+        }
+
+        protected void compute() {
+            files = listDirectory(directory);
         }
     }
 
@@ -236,7 +861,7 @@ public class FileScanner {
             if (files[i].isDirectory())
                 scanDirectory(files[i], includeSubdirs);
             else
-                scanFile(files[i]);
+                dispatchFile(files[i]);
         }
     }
 
@@ -249,4 +874,153 @@ public class FileScanner {
         // Do some stuff with each file here
         System.out.println( afile.toString() );
     }
+
+    /**
+     * Process a file on a worker thread, returning a result for
+     * scanFileCompleted(File, Object).  By default this calls scanFile(File)
+     * and returns null.
+     *
+     * @param  afile the file to process.
+     * @return the result of processing the file, or null.
+     */
+    protected Object scanFileAsync(File afile) {
+        scanFile(afile);
+        return null;
+    }
+
+    /**
+     * Complete a file processed by scanFileAsync(File), when scanning with
+     * workers.  By default this does nothing.
+     *
+     * @param afile  the file processed.
+     * @param result the result of scanFileAsync(File).
+     */
+    protected void scanFileCompleted(File afile, Object result) {
+    }
+
+    /**
+     * Pass a file found by the walk to scanFile(File), or to the workers.
+     *
+     * @param afile the file to process.
+     */
+    private void dispatchFile(File afile) {
+        Pipeline workerPipeline = pipeline;
+        if (workerPipeline != null)
+            workerPipeline.submit(afile);
+        else
+            scanFile(afile);
+    }
+
+    /**
+     * The pool of workers that files are processed on, and the files queued
+     * for completion in scan order, if ordered.
+     */
+    private class Pipeline {
+        private final ThreadPoolExecutor         executor;
+        private final ArrayDeque<PendingFile>    pending;
+        private final int                        window;
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Pipeline(int workers, boolean ordered) {
+            this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(workers * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+            this.pending  = (ordered ? new ArrayDeque<PendingFile>() : null);
+            this.window   = workers * 4;
+        }
+
+        /**
+         * Queue a file for a worker, completing the oldest files if ordered.
+         */
+        void submit(final File afile) {
+            rethrow(failure.get());
+
+            if (pending == null) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            scanFileCompleted(afile, scanFileAsync(afile));
+                        }
+                        catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                });
+                return;
+            }
+
+            PendingFile task = new PendingFile(afile);
+            executor.execute(task);
+            pending.add(task);
+
+            while (pending.size() >= window)
+                complete(pending.poll());
+        }
+
+        /**
+         * Complete every file queued, and wait for the workers to finish.
+         */
+        void finish() {
+            if (pending != null) {
+                while (!pending.isEmpty())
+                    complete(pending.poll());
+            }
+
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+                    ;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for scan workers", e);
+            }
+
+            rethrow(failure.get());
+        }
+
+        /**
+         * Stop the workers, dropping any files still queued.
+         */
+        void abort() {
+            executor.shutdownNow();
+        }
+
+        private void complete(PendingFile task) {
+            Object result;
+            try {
+                result = task.get();
+            }
+            catch (ExecutionException e) {
+                rethrow(e.getCause());
+                return;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for scan workers", e);
+            }
+
+            scanFileCompleted(task.file, result);
+        }
+
+        private void rethrow(Throwable t) {
+            if (t instanceof RuntimeException)
+                throw (RuntimeException) t;
+            if (t instanceof Error)
+                throw (Error) t;
+            if (t != null)
+                throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * A file being processed by scanFileAsync(File), awaiting completion.
+     */
+    private class PendingFile extends FutureTask<Object> {
+        final File file;
+
+        PendingFile(final File afile) {
+            super(() -> scanFileAsync(afile));
+            this.file = afile;
+        }
+    }
 }
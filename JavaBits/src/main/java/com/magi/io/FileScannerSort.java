@@ -1,8 +1,16 @@
 package com.magi.io;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Comparator;
 
+/**
+ * Sorts files alphabetically, ignoring case, with directories after files.
+ *
+ * Sorting a large array with this Comparator works out each file's directory
+ * flag and lower case name on every comparison, so sort(File[]) should be
+ * used instead, which works them out once per file.
+ */
 public class FileScannerSort implements Comparator {
 
     public int compare(Object o1, Object o2) {
@@ -17,4 +25,48 @@ public class FileScannerSort implements Comparator {
 
         return f1.getName().toLowerCase().compareTo(f2.getName().toLowerCase());
     }
+
+    /**
+     * Sort the files into the same order as compare(Object, Object), with each
+     * file's sort key worked out just once.
+     *
+     * @param files the files to sort.
+     */
+    public static void sort(File[] files) {
+        SortKey[] keys = new SortKey[files.length];
+        for (int i = 0; i < files.length; i++)
+            keys[i] = new SortKey(files[i]);
+
+        Arrays.sort(keys);
+
+        for (int i = 0; i < files.length; i++)
+            files[i] = keys[i].file;
+    }
+
+    /**
+     * A file with it's precomputed sort key - the directory flag, then the
+     * lower case name.
+     */
+    static final class SortKey implements Comparable<SortKey> {
+        final File    file;
+        final boolean directory;
+        final String  name;
+
+        SortKey(File file) {
+            this(file, file.isDirectory(), file.getName().toLowerCase());
+        }
+
+        SortKey(File file, boolean directory, String name) {
+            this.file      = file;
+            this.directory = directory;
+            this.name      = name;
+        }
+
+        public int compareTo(SortKey other) {
+            if (directory != other.directory)
+                return (directory ? 1 : -1);
+
+            return name.compareTo(other.name);
+        }
+    }
 }
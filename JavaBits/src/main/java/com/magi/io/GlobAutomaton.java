@@ -0,0 +1,181 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.io;
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A set of DOS-style wildcard patterns ('*' matches any run of characters, and
+ * '?' any single character) compiled into one deterministic automaton, so that
+ * a name is matched against every pattern at once in a single pass over it's
+ * characters, with no backtracking.
+ *
+ * The automaton is built lazily: each state is a set of positions in the
+ * patterns, and a state's transitions are only worked out the first time a
+ * name needs them, then cached.  The number of states cached is limited, and
+ * past that limit transitions are worked out on every use instead, which is
+ * slower but still linear in the length of the name.  Matching may
+ * optionally ignore case.
+ *
+ * Matching is thread safe.  Transitions may be worked out more than once by
+ * threads racing to cache them, but every thread gets the same answer.
+ *
+ * @author patkins
+ */
+final class GlobAutomaton
+{
+    private static final int MAX_STATES = 4096;
+    private static final int ASCII      = 128;
+
+    private final char[]    symbols; // the pattern character at each position
+    private final boolean[] ends;    // true for the position after each pattern
+    private final boolean   ignoreCase;
+    private final ConcurrentHashMap<BitSet, State> states = new ConcurrentHashMap<BitSet, State>();
+    private final State     start;
+
+    /**
+     * Compile the patterns given.
+     *
+     * @param patterns the DOS-style patterns.
+     * @param ignoreCase true to match regardless of case.
+     */
+    GlobAutomaton(String[] patterns, boolean ignoreCase)
+    {
+        this.ignoreCase = ignoreCase;
+
+        int total = 0;
+        for (String pattern : patterns)
+            total += pattern.length() + 1;
+
+        symbols = new char[total];
+        ends    = new boolean[total];
+
+        BitSet initial  = new BitSet(total);
+        int    position = 0;
+        for (String pattern : patterns)
+        {
+            initial.set(position);
+            for (int i = 0; i < pattern.length(); i++)
+                symbols[position++] = fold(pattern.charAt(i));
+            ends[position++] = true;
+        }
+
+        start = state(closure(initial));
+    }
+
+    /**
+     * Returns true if the name matches any of the patterns.
+     *
+     * @param  name the name to match.
+     * @return true on a match.
+     */
+    boolean matches(String name)
+    {
+        State state = start;
+        for (int i = 0; i < name.length() && !state.dead; i++)
+            state = state.next(fold(name.charAt(i)));
+
+        return state.accepting;
+    }
+
+    private char fold(char c)
+    {
+        // As ExtensionMatcher - upper then lower, as String.equalsIgnoreCase
+        return (ignoreCase ? Character.toLowerCase(Character.toUpperCase(c)) : c);
+    }
+
+    /**
+     * Add the positions following each '*', as a '*' may match nothing.
+     */
+    private BitSet closure(BitSet positions)
+    {
+        // Set bits are visited in order, so runs of '*' are followed through
+        for (int i = positions.nextSetBit(0); i >= 0; i = positions.nextSetBit(i + 1))
+        {
+            if (!ends[i] && symbols[i] == '*')
+                positions.set(i + 1);
+        }
+
+        return positions;
+    }
+
+    /**
+     * Work out the state reached from the state given on the character given.
+     */
+    private State transition(State from, char c)
+    {
+        BitSet to = new BitSet(symbols.length);
+
+        for (int i = from.positions.nextSetBit(0); i >= 0; i = from.positions.nextSetBit(i + 1))
+        {
+            if (ends[i])
+                continue;
+
+            char symbol = symbols[i];
+            if (symbol == '*')
+                to.set(i);
+            else if (symbol == '?' || symbol == c)
+                to.set(i + 1);
+        }
+
+        return state(closure(to));
+    }
+
+    /**
+     * Returns the one state for the positions given, unless the state limit
+     * has been reached.
+     */
+    private State state(BitSet positions)
+    {
+        State state = states.get(positions);
+        if (state != null)
+            return state;
+
+        state = new State(positions);
+        if (states.size() >= MAX_STATES)
+            return state; // not cached
+
+        State existing = states.putIfAbsent(positions, state);
+        return (existing != null ? existing : state);
+    }
+
+    /**
+     * A set of pattern positions, and it's cached transitions on ASCII
+     * characters.  Other characters are rare in file names, and are looked up
+     * each time.
+     */
+    private final class State
+    {
+        final BitSet  positions;
+        final boolean accepting;
+        final boolean dead;
+        final State[] ascii = new State[ASCII];
+
+        State(BitSet positions)
+        {
+            this.positions = positions;
+            this.dead      = positions.isEmpty();
+
+            boolean accept = false;
+            for (int i = positions.nextSetBit(0); i >= 0 && !accept; i = positions.nextSetBit(i + 1))
+                accept = ends[i];
+            this.accepting = accept;
+        }
+
+        State next(char c)
+        {
+            if (c >= ASCII)
+                return transition(this, c);
+
+            State next = ascii[c];
+            if (next == null)
+            {
+                next = transition(this, c);
+                ascii[c] = next; // benign race - any thread computes the same state
+            }
+
+            return next;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A snapshot of a scanned directory tree, used by FileScanner to rescan the
+ * tree incrementally.  For each directory scanned it records the directory's
+ * last modified time and file key (device and inode, where available), and
+ * the name, size, last modified time and file key of each file and
+ * sub-directory that matched the scan.
+ *
+ * The snapshot can be saved to, and loaded from, a compact binary file, so
+ * that a scan run regularly over the same tree only processes what changed
+ * since the last run.
+ *
+ * @author patkins
+ * @see    FileScanner#setSnapshot(ScanSnapshot)
+ */
+public class ScanSnapshot
+{
+    private static final int MAGIC   = 0x53534e50; // "SSNP"
+    private static final int VERSION = 1;
+
+    // Times this close to the scan may still change within the same clock tick
+    private static final long RACY_WINDOW = 2000;
+
+    private Map<String, Directory> directories = new HashMap<String, Directory>();
+
+    /**
+     * Create an empty snapshot.  The first scan with an empty snapshot
+     * processes every file.
+     */
+    public ScanSnapshot()
+    {
+    }
+
+    /**
+     * Load a snapshot saved by save(File).  If the file does not exist an empty
+     * snapshot is returned.
+     *
+     * @param  file the snapshot file.
+     * @return the snapshot.
+     * @throws IOException if the file could not be read, or is not a snapshot.
+     */
+    public static ScanSnapshot load(File file) throws IOException
+    {
+        ScanSnapshot snapshot = new ScanSnapshot();
+
+        if (!file.exists())
+            return snapshot;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a scan snapshot file: " + file);
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                String  path     = in.readUTF();
+                long    modified = in.readLong();
+                String  key      = readKey(in);
+                Entry[] entries  = new Entry[in.readInt()];
+
+                for (int j = 0; j < entries.length; j++)
+                    entries[j] = new Entry(in.readUTF(), in.readBoolean(), in.readLong(), in.readLong(), readKey(in));
+
+                snapshot.directories.put(path, new Directory(modified, key, entries));
+            }
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Save the snapshot to a file.  The snapshot is written to a temporary file
+     * first, so an existing snapshot is only replaced once the new one is
+     * complete.
+     *
+     * @param  file the snapshot file.
+     * @throws IOException if the file could not be written.
+     */
+    public synchronized void save(File file) throws IOException
+    {
+        File temp = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(directories.size());
+
+            for (Map.Entry<String, Directory> dir : directories.entrySet())
+            {
+                Directory directory = dir.getValue();
+
+                out.writeUTF(dir.getKey());
+                out.writeLong(directory.lastModified);
+                writeKey(out, directory.fileKey);
+                out.writeInt(directory.entries.length);
+
+                for (Entry entry : directory.entries)
+                {
+                    out.writeUTF(entry.name);
+                    out.writeBoolean(entry.directory);
+                    out.writeLong(entry.length);
+                    out.writeLong(entry.lastModified);
+                    writeKey(out, entry.fileKey);
+                }
+            }
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns the number of directories in the snapshot.
+     */
+    public synchronized int size()
+    {
+        return directories.size();
+    }
+
+    /**
+     * Forget all directories, so that the next scan processes every file.
+     */
+    public synchronized void clear()
+    {
+        directories.clear();
+    }
+
+    /**
+     * Returns the recorded directory for the path given, or null.
+     */
+    synchronized Directory getDirectory(String path)
+    {
+        return directories.get(path);
+    }
+
+    /**
+     * Replace the recorded directories with those of a completed scan.
+     */
+    synchronized void setDirectories(Map<String, Directory> directories)
+    {
+        this.directories = directories;
+    }
+
+    /**
+     * Returns a time recorded at the scan start time given, or -1 if the time is
+     * so recent that the file may still change without it's time changing.  A
+     * time of -1 never matches, so the file is looked at again next scan, and
+     * the directory holding it is read again to find it (see Directory).
+     */
+    static long settled(long lastModified, long started)
+    {
+        return (lastModified > started - RACY_WINDOW ? -1L : lastModified);
+    }
+
+    private static String readKey(DataInputStream in) throws IOException
+    {
+        String key = in.readUTF();
+        return (key.length() == 0 ? null : key);
+    }
+
+    private static void writeKey(DataOutputStream out, String key) throws IOException
+    {
+        out.writeUTF(key == null ? "" : key);
+    }
+
+    /**
+     * A directory recorded by a scan, and the entries that matched in it.
+     */
+    static final class Directory
+    {
+        final long    lastModified;
+        final String  fileKey;
+        final Entry[] entries;
+
+        Directory(long lastModified, String fileKey, Entry[] entries)
+        {
+            this.lastModified = lastModified;
+            this.fileKey      = fileKey;
+            this.entries      = entries;
+        }
+
+        Directory(ScannedFile directory, Entry[] entries, long started)
+        {
+            this(hasUnsettled(entries) ? -1L : settled(directory.lastModified(), started),
+                 directory.fileKey(), entries);
+        }
+
+        /**
+         * Returns true if any of the files was modified too recently to be
+         * trusted.  The directory is then recorded as unsettled too, so that
+         * the next scan reads it again rather than skipping the files in it,
+         * even if the directory itself is not modified in the meantime.
+         */
+        private static boolean hasUnsettled(Entry[] entries)
+        {
+            for (Entry entry : entries)
+            {
+                if (!entry.directory && entry.lastModified == -1L)
+                    return true;
+            }
+
+            return false;
+        }
+
+        /**
+         * Returns true if the directory has not been modified since recorded,
+         * so it's entries have not been added to, removed or renamed.
+         */
+        boolean isUnchanged(ScannedFile directory)
+        {
+            return (lastModified != -1L && lastModified == directory.lastModified() &&
+                    Objects.equals(fileKey, directory.fileKey()));
+        }
+
+        /**
+         * Returns the entries by name.
+         */
+        Map<String, Entry> byName()
+        {
+            Map<String, Entry> named = new HashMap<String, Entry>(entries.length * 2);
+            for (Entry entry : entries)
+                named.put(entry.name, entry);
+
+            return named;
+        }
+    }
+
+    /**
+     * A file or sub-directory recorded by a scan.
+     */
+    static final class Entry
+    {
+        final String  name;
+        final boolean directory;
+        final long    length;
+        final long    lastModified;
+        final String  fileKey;
+
+        Entry(String name, boolean directory, long length, long lastModified, String fileKey)
+        {
+            this.name         = name;
+            this.directory    = directory;
+            this.length       = length;
+            this.lastModified = lastModified;
+            this.fileKey      = fileKey;
+        }
+
+        Entry(ScannedFile file, long started)
+        {
+            this(file.getName(), file.isDirectory(), file.length(),
+                 settled(file.lastModified(), started), file.fileKey());
+        }
+
+        /**
+         * Returns true if the file is the same size, time and file as recorded.
+         */
+        boolean isUnchanged(ScannedFile file)
+        {
+            return (lastModified != -1L && lastModified == file.lastModified() &&
+                    length == file.length() && Objects.equals(fileKey, file.fileKey()));
+        }
+    }
+}
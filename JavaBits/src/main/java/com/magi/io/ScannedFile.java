@@ -0,0 +1,160 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.io;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A File found by a directory scan, which holds the attributes read when it
+ * was found.
+ *
+ * Each of isDirectory(), isFile(), length() and lastModified() on a plain File
+ * is another stat of the file system.  A ScannedFile reads all of them at once
+ * with a single stat as the directory is listed, so that file filters,
+ * comparators and the scanners themselves can all ask again for free.  The
+ * attributes are not refreshed, so they describe the file as it was when the
+ * directory was listed.
+ *
+ * @author patkins
+ */
+final class ScannedFile extends File
+{
+    private static final long serialVersionUID = 1L;
+
+    private final boolean directory;
+    private final boolean file;
+    private final long    length;
+    private final long    lastModified;
+    private final String  fileKey;
+
+    /**
+     * Create a ScannedFile with the attributes given, read earlier.
+     */
+    ScannedFile(String path, boolean directory, boolean file, long length, long lastModified,
+                String fileKey)
+    {
+        super(path);
+
+        this.directory    = directory;
+        this.file         = file;
+        this.length       = length;
+        this.lastModified = lastModified;
+        this.fileKey      = fileKey;
+    }
+
+    private ScannedFile(Path path, BasicFileAttributes attrs)
+    {
+        super(path.toString());
+
+        this.directory    = (attrs != null && attrs.isDirectory());
+        this.file         = (attrs != null && attrs.isRegularFile());
+        this.length       = (attrs != null ? attrs.size() : 0L);
+        this.lastModified = (attrs != null ? attrs.lastModifiedTime().toMillis() : 0L);
+        this.fileKey      = (attrs != null && attrs.fileKey() != null ? attrs.fileKey().toString() : null);
+    }
+
+    /**
+     * Create a ScannedFile for the path given, reading it's attributes.  Like
+     * File, symbolic links are followed, and a file that cannot be read (such
+     * as a broken link) is neither a file nor a directory.
+     *
+     * @param  path the path found.
+     * @return the file.
+     */
+    static ScannedFile of(Path path)
+    {
+        BasicFileAttributes attrs;
+        try
+        {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        }
+        catch (IOException e)
+        {
+            attrs = null;
+        }
+
+        return new ScannedFile(path, attrs);
+    }
+
+    /**
+     * Returns the file given as a ScannedFile, reading it's attributes if it is
+     * a plain File.
+     *
+     * @param  file the file.
+     * @return the file.
+     */
+    static ScannedFile of(File file)
+    {
+        if (file instanceof ScannedFile)
+            return (ScannedFile) file;
+
+        return of(file.toPath());
+    }
+
+    /**
+     * List the files in a directory that are accepted by the filter.  This is
+     * File.listFiles(FileFilter), with one stat per file found.
+     *
+     * @param  directory the directory to list.
+     * @param  filter the filter, or null to accept every file.
+     * @return the files, or null if the directory could not be read.
+     */
+    static File[] listFiles(File directory, FileFilter filter)
+    {
+        List<File> files = new ArrayList<File>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath()))
+        {
+            for (Path entry : stream)
+            {
+                File found = of(entry);
+                if (filter == null || filter.accept(found))
+                    files.add(found);
+            }
+        }
+        catch (IOException | DirectoryIteratorException e)
+        {
+            return null;
+        }
+
+        return files.toArray(new File[files.size()]);
+    }
+
+    public boolean isDirectory()
+    {
+        return directory;
+    }
+
+    public boolean isFile()
+    {
+        return file;
+    }
+
+    public long length()
+    {
+        return length;
+    }
+
+    public long lastModified()
+    {
+        return lastModified;
+    }
+
+    /**
+     * Returns the file system's unique key for the file, such as the device and
+     * inode, or null if there is none.
+     */
+    String fileKey()
+    {
+        return fileKey;
+    }
+}
@@ -2,19 +2,34 @@ package com.magi.io;
 
 import java.io.File;
 import java.io.FileFilter;
-
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accepts files that match any of a set of DOS-style wildcard patterns, where
+ * '*' matches any run of characters and '?' any single character, and
+ * optionally all directories.
+ *
+ * The patterns are compiled when set.  Patterns of the form "*.ext" are
+ * looked up by extension in an ExtensionMatcher, in constant time however many
+ * there are, and all other patterns are compiled together into one automaton,
+ * so a file name is matched against all of them in a single pass over it's
+ * characters.  Matching is case sensitive unless setIgnoreCase(true) is set.
+ */
 public class WildcardFileFilter implements FileFilter {
 
-    private String[] filePatterns;
-    private boolean  includeSubdirs;
+    private String[]         filePatterns;
+    private ExtensionMatcher extensions;
+    private GlobAutomaton    automaton; // null if all patterns are extensions
+    private boolean          includeSubdirs;
+    private boolean          ignoreCase = false;
 
     public WildcardFileFilter(String filePattern, boolean includeSubdirs) {
-        this.filePatterns   = new String[] { filePattern };
-        this.includeSubdirs = includeSubdirs;
+        this(new String[] { filePattern }, includeSubdirs);
     }
 
     public WildcardFileFilter(String[] filePatterns, boolean includeSubdirs) {
-        this.filePatterns    = filePatterns;
+        setFilePatterns(filePatterns);
         this.includeSubdirs = includeSubdirs;
     }
     
@@ -31,11 +46,26 @@ public class WildcardFileFilter implements FileFilter {
     }
 
     public void setFilePattern(String pattern) {
-        this.filePatterns = new String[] { pattern };
+        setFilePatterns(new String[] { pattern });
     }
 
     public void setFilePatterns(String[] patterns) {
         this.filePatterns = patterns;
+        compile();
+    }
+
+    public boolean getIgnoreCase() {
+        return ignoreCase;
+    }
+
+    /**
+     * Set to true to match file names regardless of case.
+     *
+     * @param ignoreCase true to ignore case.
+     */
+    public void setIgnoreCase(boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        compile();
     }
     
     public boolean accept(File pathname) {
@@ -45,65 +75,28 @@ public class WildcardFileFilter implements FileFilter {
         
         String name = pathname.getName();
 
-        for (String filePattern: filePatterns) {
-            if (isPatternMatch(name, filePattern)) {
-            	return true;
-            }
-        }
-        
-        return false;
+        return extensions.matches(name) || (automaton != null && automaton.matches(name));
     }
 
-    private boolean isPatternMatch(String name, String filePattern) {
-    	boolean seek = false;
-    	boolean wasseek = false;
-    	int seek_i = 0;
-        int n = 0;
-        for (int i = 0; i < filePattern.length(); i++) {
-
-            char p = filePattern.charAt(i);
-
-            if (p != '*' && n == name.length())
-                return false;
-
-            switch (p) {
-                case '*':
-                    seek = true;
-                    seek_i = i;
-                    break;
-                case '?':
-                    n++;
-                    seek = false;
-                    break;
-                default:
-                    if (name.charAt(n) == p) {
-                        n++;
-                        wasseek = seek;
-                        seek = false;
-                    }
-                    else if (seek) {
-                        n++;
-                        i--;
-                    }
-                    else {
-                    	if (wasseek) {
-                    		seek = wasseek;
-                    		wasseek = false;
-                    		i = seek_i;
-                    	}
-                    	else {
-                            return false;
-                    	}
-                    }
-                    break;
-            }
+    /**
+     * Split the patterns into simple extensions, and the rest for the automaton.
+     */
+    private void compile() {
+        List<String> exts  = new ArrayList<String>();
+        List<String> globs = new ArrayList<String>();
+
+        for (String pattern : filePatterns) {
+            String ext = (pattern.startsWith("*.") ? pattern.substring(1) : null); // ".ext"
+            if (ext != null && ext.indexOf('*') < 0 && ext.indexOf('?') < 0)
+                exts.add(ext);
+            else
+                globs.add(pattern);
         }
 
-        if (!seek && n < name.length())
-            return false;
-
-        return true;
-	}
+        this.extensions = new ExtensionMatcher(exts.toArray(new String[exts.size()]), ignoreCase);
+        this.automaton  = (globs.isEmpty() ? null :
+                           new GlobAutomaton(globs.toArray(new String[globs.size()]), ignoreCase));
+    }
 
 	public static void main(String[] args) {
         WildcardFileFilter wff = new WildcardFileFilter("*.jpg", false);
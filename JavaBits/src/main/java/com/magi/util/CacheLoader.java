@@ -0,0 +1,22 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.util;
+
+/**
+ * Loads the value for a key that is missing from (or expired in) a cache.
+ *
+ * @author patkins
+ * @see    ConcurrentExpiryHashMap#get(Object, CacheLoader)
+ */
+public interface CacheLoader<K,V>
+{
+    /**
+     * Load the value for the key given, typically from a database or other
+     * backing store.
+     *
+     * @param  key the key to load.
+     * @return the value, or null if there is no value for this key.
+     * @throws Exception if the value could not be loaded.
+     */
+    public V load(K key) throws Exception;
+}
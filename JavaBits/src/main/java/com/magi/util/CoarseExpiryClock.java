@@ -0,0 +1,56 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.util;
+
+/**
+ * An ExpiryClock that returns a cached time, updated in the background every
+ * few milliseconds.  Reading it is just a volatile read, which is much cheaper
+ * than calling System.currentTimeMillis() on every get() of a busy map, at the
+ * cost of entries expiring up to one resolution period late.
+ *
+ * @author patkins
+ */
+public final class CoarseExpiryClock implements ExpiryClock
+{
+    /** The default resolution, in milliseconds. */
+    public static final long DEFAULT_RESOLUTION = 10;
+
+    private static volatile CoarseExpiryClock shared = null;
+
+    private volatile long now = System.currentTimeMillis();
+
+    private CoarseExpiryClock(long resolution)
+    {
+        ExpiryReaper.scheduleTick(new Runnable()
+        {
+            public void run()
+            {
+                now = System.currentTimeMillis();
+            }
+        }, resolution);
+    }
+
+    /**
+     * Returns the shared coarse clock, with the default resolution.
+     *
+     * @return the shared clock instance.
+     */
+    public static CoarseExpiryClock getInstance()
+    {
+        if (shared == null)
+        {
+            synchronized (CoarseExpiryClock.class)
+            {
+                if (shared == null)
+                    shared = new CoarseExpiryClock(DEFAULT_RESOLUTION);
+            }
+        }
+
+        return shared;
+    }
+
+    public long currentTimeMillis()
+    {
+        return now;
+    }
+}
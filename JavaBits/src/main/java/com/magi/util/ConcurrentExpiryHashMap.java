@@ -0,0 +1,1398 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.util;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * ConcurrentExpiryHashMap is a thread safe version of the ExpiryHashMap, which
+ * expires it's entries after a set time period.
+ *
+ * Reads never lock, and writes only lock the hash bin of the key being
+ * written (the map is backed by a ConcurrentHashMap), so many threads can
+ * share one instance without synchronizing on it.  Expired entries are removed
+ * atomically, so a concurrent put() of the same key is never lost.
+ *
+ * The timeout set in the constructor applies to every entry, unless a different
+ * time to live is given for an entry with put(Object, Object, long).  With
+ * setExpireAfterAccess(true) every successful get() restarts the entry's time
+ * to live, so frequently read entries stay in the map while unused ones expire.
+ *
+ * Every entry written is also queued in write order, one queue per power of
+ * two range of time to live, so there are never more than 64 queues however
+ * many distinct times to live are used.  Within a queue write order is close
+ * to expiry order, so timing out entries only visits the expired entries at
+ * the head of each queue.  An entry queued behind one with a longer time to
+ * live in the same range may be removed up to one time to live late, although
+ * it is never returned once expired.  Entries that are replaced or
+ * removed are discarded when they reach the head of their queue, and once such
+ * stale entries outnumber the live ones the queues are compacted, so a key that
+ * is rewritten often does not pile up old values behind a live head.  Entries read
+ * since they were queued are moved to the back of their queue by the sweep, so
+ * the read path never touches the queues.
+ *
+ * The map can optionally be limited to a maximum number of entries, see
+ * setMaxSize(int).  When full, the entry written (or, when expiring after
+ * access, read) longest ago is evicted first, chosen from the heads of the
+ * queues.  Eviction rarely makes a writer wait: if another thread is already
+ * sweeping or evicting, the writer carries on, and the map may briefly hold a
+ * few more entries than the maximum until the next write or sweep.  Writers
+ * only wait if the map overruns it's maximum by more than a sixteenth.
+ *
+ * The map can also be used as a loading cache, with get(Object, CacheLoader).
+ * Concurrent misses for the same key share a single call to the loader, so an
+ * expired hot entry does not send every thread to the backing store at once.
+ * With setRefreshAhead(long, Executor), entries that are about to expire are
+ * reloaded in the background while the current value is still returned.
+ *
+ * Expired entries can also be timed out by a shared background thread, see
+ * setBackgroundTimeout(long), and the source of the current time can be
+ * changed with setClock(ExpiryClock).
+ *
+ * Hit, miss, expiry, eviction and sweep statistics can be recorded with
+ * setRecordStats(true), read with getStats(), and published through JMX
+ * with registerStatsMBean(String), until unregisterStatsMBean() is called.
+ * The counters are striped, so recording them does not add contention to the
+ * read path.
+ *
+ * The entrySet(), keySet() and values() views are backed by the map, and never
+ * copy it.  Their iterators skip timed out entries and, like those of a
+ * ConcurrentHashMap, are weakly consistent: they never throw a
+ * ConcurrentModificationException, and may or may not reflect changes made
+ * while iterating.  The entries returned are snapshots of a key and value, but
+ * setValue() writes through to the map, as a put() with the entry's time to
+ * live, so Map.replaceAll(BiFunction) works as expected.  Note that size() and
+ * the size of the views may still count entries that have timed out.
+ *
+ * NOTE: Like ConcurrentHashMap, null keys are not supported.
+ *
+ * @author  patkins
+ * @version Revision 1.5
+ * @see     ExpiryHashMap
+ */
+public class ConcurrentExpiryHashMap<K,V> extends AbstractMap<K,V> implements Map<K,V>
+{
+    private static final int DEFAULT_CAPACITY    = 16;
+    private static final int DEFAULT_CONCURRENCY = 16;
+    private static final int COMPACT_SLACK       = 1024; // stale entries allowed beyond the live count
+
+    private final long                  timeout;
+    private volatile ExpiryClock        clock        = ExpiryClock.SYSTEM;
+    private final AtomicLong            lastCleaned  = new AtomicLong(clock.currentTimeMillis());
+    private volatile boolean            autoTimeout  = false;
+    private volatile boolean            expireAfterAccess = false;
+    private volatile int                maxSweepSize = 1000; // max entries removed per periodic sweep
+    private volatile int                maxSize      = 0;    // max entries held, zero for no limit
+    private final ConcurrentHashMap<K,Entry<K,V>>      map;
+    private final ConcurrentHashMap<Integer,ExpiryQueue<K,V>> expiryQueues = new ConcurrentHashMap<Integer,ExpiryQueue<K,V>>();
+    private final ExpiryQueue<K,V>      defaultQueue;
+    private final ReentrantLock         sweepLock    = new ReentrantLock();
+    private final AtomicLong            queued       = new AtomicLong(); // entries in all the queues
+    private final ConcurrentHashMap<K,FutureTask<V>> loading = new ConcurrentHashMap<K,FutureTask<V>>();
+    private volatile long               refreshAhead = 0;
+    private volatile Executor           refreshExecutor = null;
+    private ScheduledFuture<?>          backgroundTimeout = null;
+    private volatile ExpiryStatsCounter stats = null;
+
+    // Views, created on first use
+    private Set<Map.Entry<K,V>>         entrySet = null;
+    private Set<K>                      keySet   = null;
+    private Collection<V>               values   = null;
+
+    /**
+     * Create the map with a default timeout period of 10 minutes.
+     */
+    public ConcurrentExpiryHashMap()
+    {
+        this(600000);
+    }
+
+    /**
+     * Create the map with the specified timeout period in milliseconds.
+     *
+     * @param timeout timeout period.
+     */
+    public ConcurrentExpiryHashMap(long timeout)
+    {
+        this(timeout, DEFAULT_CAPACITY, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Create the map with the specified timeout period and initial map capacity.
+     *
+     * @param timeout timeout period.
+     * @param initialCapacity the initial capacity of the map entries.
+     */
+    public ConcurrentExpiryHashMap(long timeout, int initialCapacity)
+    {
+        this(timeout, initialCapacity, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Create the map with the specified timeout period, initial map capacity
+     * and the estimated number of concurrently updating threads.
+     *
+     * @param timeout timeout period.
+     * @param initialCapacity the initial capacity of the map entries.
+     * @param concurrencyLevel the estimated number of concurrently updating threads.
+     */
+    public ConcurrentExpiryHashMap(long timeout, int initialCapacity, int concurrencyLevel)
+    {
+        this.timeout = timeout;
+        this.map = new ConcurrentHashMap<K,Entry<K,V>>(initialCapacity, 0.75f, concurrencyLevel);
+        this.defaultQueue = expiryQueue(timeout);
+    }
+
+    /**
+     * Implements Map.get(Object)
+     *
+     * Retrieve the value Object for this key.
+     * If the key does not exist, or the entry has timed out null is returned.
+     */
+    public V get(Object key)
+    {
+        if (autoTimeout)
+            periodicTimeoutEntries();
+
+        Entry<K,V> entry = lookup(key, clock.currentTimeMillis());
+
+        return (entry == null ? null : entry.value);
+    }
+
+    /**
+     * Returns the valid entry for this key, recording the access, or null if the
+     * key does not exist or the entry has timed out.
+     */
+    private Entry<K,V> lookup(Object key, long now)
+    {
+        Entry<K,V>         entry   = map.get(key);
+        ExpiryStatsCounter counter = stats;
+
+        if (entry == null) // no entry found
+        {
+            if (counter != null)
+                counter.recordMiss();
+            return null;
+        }
+
+        if ( isExpired(entry, now) )
+        {
+            // Map entry has timed out - remove it (unless already replaced)
+            if (map.remove(key, entry) && counter != null)
+                counter.recordExpirations(1);
+
+            if (counter != null)
+                counter.recordMiss();
+            return null;
+        }
+
+        if (expireAfterAccess)
+            entry.expires = now + entry.ttl; // re-queued by the next sweep
+
+        if (counter != null)
+            counter.recordHit();
+
+        return entry;
+    }
+
+    /**
+     * Retrieve the value Object for this key, loading it with the loader given
+     * if the key does not exist or the entry has timed out.  The loaded value is
+     * put into the map, unless it is null.
+     *
+     * Only one load per key is in progress at any time: threads that miss on a
+     * key that is already being loaded wait for, and share, that load's result.
+     *
+     * @param  key the key.
+     * @param  loader the loader used to load a missing value.
+     * @return the value, or null if the loader returned null.
+     * @throws ExecutionException if the loader threw an exception, which is
+     *         available as the cause, or the wait for the load was interrupted.
+     */
+    public V get(K key, CacheLoader<? super K, ? extends V> loader) throws ExecutionException
+    {
+        if (autoTimeout)
+            periodicTimeoutEntries();
+
+        long       now   = clock.currentTimeMillis();
+        Entry<K,V> entry = lookup(key, now);
+
+        if (entry != null)
+        {
+            if (!expireAfterAccess && refreshAhead > 0 && entry.expires - now < refreshAhead)
+                refresh(key, loader);
+
+            return entry.value;
+        }
+
+        FutureTask<V> existing = loading.get(key);
+        FutureTask<V> task     = null;
+
+        if (existing == null)
+        {
+            task     = newLoadTask(key, loader);
+            existing = loading.putIfAbsent(key, task);
+        }
+
+        if (existing == null)
+        {
+            try
+            {
+                // Another load may have completed between the miss and now
+                entry = map.get(key);
+                if (entry != null && !isExpired(entry, clock.currentTimeMillis()))
+                    return entry.value;
+
+                task.run();
+            }
+            finally
+            {
+                loading.remove(key, task);
+            }
+            existing = task;
+        }
+
+        try
+        {
+            return existing.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException("Interrupted while waiting for the value of " + key, e);
+        }
+    }
+
+    /**
+     * Implements Map.put(Object, Object)
+     *
+     * Put a new timestamped key/value pair into the map.
+     */
+    public V put(K key, V value)
+    {
+        return put(key, value, timeout);
+    }
+
+    /**
+     * Put a new timestamped key/value pair into the map, which expires after the
+     * time to live given rather than the map's timeout period.
+     *
+     * @param  key the key.
+     * @param  value the value.
+     * @param  ttl the time to live of this entry in milliseconds.
+     * @return the previous value if it was still valid, otherwise null.
+     */
+    public V put(K key, V value, long ttl)
+    {
+        long             now   = clock.currentTimeMillis();
+        ExpiryQueue<K,V> queue = (ttl == timeout ? defaultQueue : expiryQueue(ttl));
+        Entry<K,V>       entry = new Entry<K,V>(key, value, ttl, now + ttl);
+        Entry<K,V>       old   = map.put(key, entry);
+        queue.entries.offer(entry);
+        queued.incrementAndGet();
+
+        if (old == null && maxSize > 0)
+            evict();
+        else if (old != null)
+            compactIfStale();
+
+        if (autoTimeout)
+            periodicTimeoutEntries();
+
+        if (old != null && !isExpired(old, now))
+            return old.value; // previous entry still valid - return it
+
+        return null;
+    }
+
+    /**
+     * Implements Map.clear()
+     *
+     * The queues are emptied before the map, so an entry put concurrently is
+     * either removed from both, or is queued after they are emptied, and is
+     * never left in the map without a place in the expiry order.
+     */
+    public void clear()
+    {
+        sweepLock.lock();
+        try
+        {
+            Iterator<ExpiryQueue<K,V>> it = expiryQueues.values().iterator();
+            while (it.hasNext())
+            {
+                ConcurrentLinkedQueue<Entry<K,V>> queue = it.next().entries;
+                while (queue.poll() != null)
+                    queued.decrementAndGet();
+            }
+
+            map.clear();
+        }
+        finally
+        {
+            sweepLock.unlock();
+        }
+    }
+
+    /**
+     * Scan map and remove any timed out entries.
+     * This is not necessary but is recommended for reducing memory usage.
+     *
+     * @see #periodicTimeoutEntries()
+     */
+    public void timeoutEntries()
+    {
+        sweepLock.lock();
+        try
+        {
+            sweep(Integer.MAX_VALUE);
+
+            if (maxSize > 0)
+                evictEntries();
+        }
+        finally
+        {
+            sweepLock.unlock();
+        }
+    }
+
+    /**
+     * Periodically scan map and remove any timed out entries.
+     * This method will perform a call to timeoutEntries() every n milliseconds,
+     * as set in the constructor.  Only one of any number of concurrent callers
+     * will perform the scan, the others return immediately.
+     *
+     * No more than getMaxSweepSize() entries are removed per call, so the cost
+     * to any one get() or put() is bounded.  If more expired entries remain, the
+     * sweep continues on the next call.
+     *
+     * @see #timeoutEntries()
+     * @see #setMaxSweepSize(int)
+     */
+    public void periodicTimeoutEntries()
+    {
+        long last = lastCleaned.get();
+
+        if (last + timeout >= clock.currentTimeMillis() || !sweepLock.tryLock())
+            return;
+
+        try
+        {
+            int limit = (maxSweepSize > 0 ? maxSweepSize : Integer.MAX_VALUE);
+
+            if (sweep(limit) < limit)
+                lastCleaned.set(clock.currentTimeMillis());
+
+            if (maxSize > 0)
+                evictEntries(); // catch up on evictions skipped by writers
+        }
+        finally
+        {
+            sweepLock.unlock();
+        }
+    }
+
+    /**
+     * Time out no more than limit queued entries, and catch up on evictions,
+     * for the background timeout.
+     *
+     * @return the number of queued entries processed.
+     */
+    int reap(int limit)
+    {
+        sweepLock.lock();
+        try
+        {
+            int processed = sweep(limit);
+
+            if (maxSize > 0)
+                evictEntries();
+
+            return processed;
+        }
+        finally
+        {
+            sweepLock.unlock();
+        }
+    }
+
+    /**
+     * Time out entries, recording the sweep statistics if required.
+     * The caller must hold the sweepLock.
+     */
+    private int sweep(int limit)
+    {
+        ExpiryStatsCounter counter = stats;
+
+        if (counter == null)
+            return timeoutEntries(limit);
+
+        long start     = System.nanoTime();
+        int  processed = timeoutEntries(limit);
+
+        counter.recordSweep(System.nanoTime() - start);
+        return processed;
+    }
+
+    /**
+     * Remove timed out entries from the head of each expiry queue, oldest first.
+     * The caller must hold the sweepLock.
+     *
+     * @param  limit the maximum number of queued entries to process.
+     * @return the number of queued entries processed.
+     */
+    private int timeoutEntries(int limit)
+    {
+        int                        processed = 0;
+        int                        expired   = 0;
+        long                       now       = clock.currentTimeMillis();
+        Iterator<ExpiryQueue<K,V>> it        = expiryQueues.values().iterator();
+
+        while (it.hasNext() && processed < limit)
+        {
+            ConcurrentLinkedQueue<Entry<K,V>> queue = it.next().entries;
+
+            while (processed < limit)
+            {
+                Entry<K,V> entry = queue.peek();
+
+                if (entry == null)
+                    break;
+
+                long expires = entry.expires;
+
+                if (map.get(entry.key) != entry)
+                {
+                    queue.poll(); // replaced or removed - discard
+                    queued.decrementAndGet();
+                }
+                else if (expires < now)
+                {
+                    queue.poll();
+                    queued.decrementAndGet();
+                    if (map.remove(entry.key, entry)) // no-op if replaced since
+                        expired++;
+                }
+                else if (expires != entry.queuedExpires)
+                {
+                    // Read since it was queued - move to the back of the queue
+                    queue.poll();
+                    entry.queuedExpires = expires;
+                    queue.offer(entry);
+                }
+                else
+                {
+                    break; // all later entries expire after this one
+                }
+
+                processed++;
+            }
+        }
+
+        ExpiryStatsCounter counter = stats;
+        if (counter != null && expired > 0)
+            counter.recordExpirations(expired);
+
+        return processed;
+    }
+
+    /* Implements Map.containsKey(Object) */
+    public boolean containsKey(Object key)
+    {
+        if (autoTimeout)
+            periodicTimeoutEntries();
+
+        Entry<K,V> entry = map.get(key);
+        return (entry != null && entry.value != null &&
+                !isExpired(entry, clock.currentTimeMillis()));
+    }
+
+    /**
+     * Implements Map.containsValue(Object)
+     *
+     * Returns true if the value object exists in the map.
+     * If the value does not exist, or the value entry has timed out, false is returned.
+     */
+    public boolean containsValue(Object value)
+    {
+        long                 now = clock.currentTimeMillis();
+        Iterator<Entry<K,V>> it  = map.values().iterator();
+        while (it.hasNext())
+        {
+            Entry<K,V> entry = it.next();
+            if ( !isExpired(entry, now) )
+            {
+                if (value == null ? entry.value == null : value.equals(entry.value))
+                    return true;
+            }
+            else // entry expired - take this opportunity to remove it
+            {
+                removeExpired(entry);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Implements Map.entrySet()
+     *
+     * Returns a view of the key/value entries that are still valid (not timed out).
+     */
+    public Set<Map.Entry<K,V>> entrySet()
+    {
+        if (entrySet == null)
+            entrySet = new EntrySet();
+
+        return entrySet;
+    }
+
+    /* implements Map.isEmpty() */
+    public boolean isEmpty()
+    {
+        return map.isEmpty();
+    }
+
+    /**
+     * Implements Map.keySet()
+     *
+     * Returns a view of the keys of the entries that are still valid (not timed out).
+     */
+    public Set<K> keySet()
+    {
+        if (keySet == null)
+            keySet = new KeySet();
+
+        return keySet;
+    }
+
+    /**
+     * Implements Map.putAll(Map)
+     *
+     * Put all Map entries into this ConcurrentExpiryHashMap, with a current timestamp.
+     */
+    public void putAll(Map<? extends K, ? extends V> inMap)
+    {
+        long expires = clock.currentTimeMillis() + timeout;
+        Iterator<? extends Map.Entry<? extends K, ? extends V>> it = inMap.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<? extends K, ? extends V> in = it.next();
+            Entry<K,V> entry = new Entry<K,V>(in.getKey(), in.getValue(), timeout, expires);
+
+            map.put(entry.key, entry);
+            defaultQueue.entries.offer(entry);
+            queued.incrementAndGet();
+        }
+
+        if (maxSize > 0)
+            evict();
+    }
+
+    /* implements Map.remove(Object) */
+    public V remove(Object key)
+    {
+        Entry<K,V> entry = map.remove(key);
+
+        if (entry != null)
+            compactIfStale();
+
+        if (entry != null && !isExpired(entry, clock.currentTimeMillis()))
+            return entry.value;
+
+        return null;
+    }
+
+    /* implements Map.size() */
+    public int size()
+    {
+        return map.size();
+    }
+
+    /**
+     * Implements Map.values()
+     *
+     * Returns a view of the value objects that are still valid (not timed out).
+     */
+    public Collection<V> values()
+    {
+        if (values == null)
+            values = new Values();
+
+        return values;
+    }
+
+    /**
+     * Sets this instance to automatically (and periodically) timeout entries
+     * in the cache, whenever a get() or put() operation is actioned.
+     */
+    public void setAutoTimeout(boolean autoTimeout)
+    {
+        this.autoTimeout = autoTimeout;
+    }
+
+    public boolean isAutoTimeout()
+    {
+        return this.autoTimeout;
+    }
+
+    /**
+     * Sets this instance to restart an entry's time to live whenever it is read
+     * with get(), rather than only when it is written.
+     *
+     * @param expireAfterAccess true to expire entries a set time after last access.
+     */
+    public void setExpireAfterAccess(boolean expireAfterAccess)
+    {
+        this.expireAfterAccess = expireAfterAccess;
+    }
+
+    public boolean isExpireAfterAccess()
+    {
+        return this.expireAfterAccess;
+    }
+
+    /**
+     * Sets the maximum number of entries removed by each periodic sweep.
+     * A value of zero or less means no limit.
+     *
+     * @param maxSweepSize the maximum entries removed per periodicTimeoutEntries() call.
+     */
+    public void setMaxSweepSize(int maxSweepSize)
+    {
+        this.maxSweepSize = maxSweepSize;
+    }
+
+    public int getMaxSweepSize()
+    {
+        return this.maxSweepSize;
+    }
+
+    /**
+     * Sets the maximum number of entries held in the map.  Once the map is
+     * full, putting a new key evicts the oldest entries.  A value of zero or
+     * less means no limit.
+     *
+     * @param maxSize the maximum number of entries.
+     */
+    public void setMaxSize(int maxSize)
+    {
+        this.maxSize = maxSize;
+
+        if (maxSize > 0)
+            evict();
+    }
+
+    public int getMaxSize()
+    {
+        return this.maxSize;
+    }
+
+    /**
+     * Sets a refresh ahead period for get(Object, CacheLoader).  An entry read
+     * within this many milliseconds of it's expiry is reloaded asynchronously on
+     * the executor given, while the current value is returned.  A period of zero
+     * or less disables refresh ahead.  This has no effect when expiring after
+     * access, as reading an entry already extends it's life.
+     *
+     * @param refreshAhead the refresh ahead period in milliseconds.
+     * @param executor the executor to run the background reloads on.
+     */
+    public void setRefreshAhead(long refreshAhead, Executor executor)
+    {
+        if (refreshAhead > 0 && executor == null)
+            throw new IllegalArgumentException("An executor is required to refresh ahead.");
+
+        this.refreshExecutor = executor;
+        this.refreshAhead    = refreshAhead;
+    }
+
+    public long getRefreshAhead()
+    {
+        return this.refreshAhead;
+    }
+
+    /**
+     * Sets the clock used to timestamp and expire entries.  This should be set
+     * before any entries are put into the map.
+     *
+     * @param clock the clock to use, for example a CoarseExpiryClock.
+     */
+    public void setClock(ExpiryClock clock)
+    {
+        this.clock = clock;
+        this.lastCleaned.set(clock.currentTimeMillis());
+    }
+
+    public ExpiryClock getClock()
+    {
+        return this.clock;
+    }
+
+    /**
+     * Sets this instance to time out it's entries on a shared background thread
+     * every period given, so that expired entries are released even if the map
+     * is not being used, and callers never pay for the timeout.
+     * A period of zero or less stops the background timeout.
+     *
+     * @param period the period between timeouts in milliseconds.
+     */
+    public synchronized void setBackgroundTimeout(long period)
+    {
+        if (backgroundTimeout != null)
+            backgroundTimeout.cancel(false);
+
+        backgroundTimeout = (period > 0 ? ExpiryReaper.schedule(this, period) : null);
+    }
+
+    /**
+     * Sets this instance to record hit, miss, expiry, eviction and sweep
+     * statistics.  Turning recording on starts all counts from zero, and turning
+     * it off unregisters any statistics MBean.
+     *
+     * @param recordStats true to record statistics.
+     */
+    public synchronized void setRecordStats(boolean recordStats)
+    {
+        if (!recordStats)
+        {
+            try
+            {
+                unregisterStatsMBean();
+            }
+            catch (JMException e)
+            {
+                // left registered - it only holds the map weakly
+            }
+            stats = null;
+        }
+        else if (stats == null)
+            stats = new ExpiryStatsCounter(this);
+    }
+
+    public boolean isRecordStats()
+    {
+        return (stats != null);
+    }
+
+    /**
+     * Returns a snapshot of the statistics of this map.  Only the size is
+     * available unless statistics are being recorded.
+     *
+     * @return the current statistics.
+     * @see    #setRecordStats(boolean)
+     */
+    public ExpiryStats getStats()
+    {
+        ExpiryStatsCounter counter = stats;
+
+        if (counter == null)
+            return new ExpiryStats(0, 0, 0, 0, 0, 0, size());
+
+        return counter.snapshot();
+    }
+
+    /**
+     * Publish the statistics of this map through JMX, under the name
+     * "com.magi.util:type=ConcurrentExpiryHashMap,name=&lt;name&gt;".
+     * Statistics recording is turned on if it is not already.
+     *
+     * @param  name the name of this map.
+     * @return the name the MBean was registered under, used to unregister it.
+     * @throws JMException if the MBean could not be registered.
+     */
+    public synchronized ObjectName registerStatsMBean(String name) throws JMException
+    {
+        setRecordStats(true);
+        return stats.register("ConcurrentExpiryHashMap", name);
+    }
+
+    /**
+     * Remove the statistics MBean of this map, registered with
+     * registerStatsMBean(String), from JMX.
+     *
+     * @return false if no MBean was registered.
+     * @throws JMException if the MBean could not be unregistered.
+     */
+    public synchronized boolean unregisterStatsMBean() throws JMException
+    {
+        ExpiryStatsCounter counter = stats;
+
+        return (counter != null && counter.unregister());
+    }
+
+    /**
+     * Remove an expired entry found while iterating, unless already replaced.
+     */
+    private void removeExpired(Entry<K,V> entry)
+    {
+        ExpiryStatsCounter counter = stats;
+
+        if (map.remove(entry.key, entry) && counter != null)
+            counter.recordExpirations(1);
+    }
+
+    /**
+     * Reload the key in the background, unless it is already being loaded.
+     * A failed reload is ignored, and the current entry simply expires as normal.
+     */
+    private void refresh(K key, CacheLoader<? super K, ? extends V> loader)
+    {
+        if (loading.containsKey(key))
+            return;
+
+        final K             refreshKey = key;
+        final FutureTask<V> task       = newLoadTask(key, loader);
+
+        if (loading.putIfAbsent(key, task) != null)
+            return;
+
+        try
+        {
+            refreshExecutor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    finally
+                    {
+                        loading.remove(refreshKey, task);
+                    }
+                }
+            });
+        }
+        catch (RuntimeException e)
+        {
+            loading.remove(refreshKey, task); // rejected - try again on a later read
+        }
+    }
+
+    /**
+     * Create a task that loads the key, and puts any non null value loaded.
+     */
+    private FutureTask<V> newLoadTask(final K key, final CacheLoader<? super K, ? extends V> loader)
+    {
+        return new FutureTask<V>(new Callable<V>()
+        {
+            public V call() throws Exception
+            {
+                V value = loader.load(key);
+
+                if (value != null)
+                    put(key, value);
+
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Evict entries until the map is back within it's maximum size, unless
+     * another thread holds the sweepLock, in which case it evicts them or the
+     * next write or sweep does.  Only if the map has overrun it's maximum size
+     * by more than a sixteenth does a writer wait for the lock.
+     */
+    private void evict()
+    {
+        while (map.size() > maxSize)
+        {
+            if (!sweepLock.tryLock())
+            {
+                if (map.size() <= maxSize + (maxSize >> 4) + 16)
+                    return;
+
+                sweepLock.lock();
+            }
+
+            try
+            {
+                if (!evictEntries())
+                    return; // nothing queued to evict
+            }
+            finally
+            {
+                sweepLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Evict the least recently written (or read, when expiring after access)
+     * entries until the map is back within it's maximum size.  Each queue is in
+     * write order, so the victim is the oldest of the queue heads.  Entries are
+     * evicted from the oldest queue until it's head is newer than the head of
+     * another queue, so the heads are not all compared for every entry.  The
+     * caller must hold the sweepLock.
+     *
+     * @return false if the map is still over it's maximum size, as no queue
+     *         holds a live entry.
+     */
+    private boolean evictEntries()
+    {
+        ExpiryStatsCounter counter = stats;
+
+        while (map.size() > maxSize)
+        {
+            ConcurrentLinkedQueue<Entry<K,V>> from   = null;
+            long                              oldest = Long.MAX_VALUE;
+            long                              next   = Long.MAX_VALUE; // the oldest head of the other queues
+
+            Iterator<ExpiryQueue<K,V>> it = expiryQueues.values().iterator();
+            while (it.hasNext())
+            {
+                ConcurrentLinkedQueue<Entry<K,V>> queue = it.next().entries;
+                Entry<K,V>                        head  = liveHead(queue);
+
+                if (head == null)
+                    continue;
+
+                long stamp = stamp(head);
+                if (from == null || stamp < oldest)
+                {
+                    next   = Math.min(next, oldest);
+                    oldest = stamp;
+                    from   = queue;
+                }
+                else
+                {
+                    next = Math.min(next, stamp);
+                }
+            }
+
+            if (from == null)
+                return false;
+
+            Entry<K,V> victim = liveHead(from);
+            do
+            {
+                from.poll(); // still the head, as only the sweepLock holder polls
+                queued.decrementAndGet();
+
+                // no-op if replaced or removed since
+                if (map.remove(victim.key, victim) && counter != null)
+                    counter.recordEviction();
+            }
+            while (map.size() > maxSize && (victim = liveHead(from)) != null && stamp(victim) <= next);
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the first entry of the queue still in the map, discarding the
+     * replaced and removed entries before it, and moving those read since they
+     * were queued to the back.  The caller must hold the sweepLock.
+     */
+    private Entry<K,V> liveHead(ConcurrentLinkedQueue<Entry<K,V>> queue)
+    {
+        Entry<K,V> entry;
+        int        moved = 0;
+
+        while ((entry = queue.peek()) != null)
+        {
+            long expires = entry.expires;
+
+            if (map.get(entry.key) != entry)
+            {
+                queue.poll();
+                queued.decrementAndGet();
+            }
+            else if (expires != entry.queuedExpires && moved++ < 1000)
+            {
+                queue.poll();
+                entry.queuedExpires = expires;
+                queue.offer(entry);
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Returns the time the entry was written, or last read when expiring after
+     * access.
+     */
+    private static <K,V> long stamp(Entry<K,V> entry)
+    {
+        return entry.expires - entry.ttl;
+    }
+
+    /**
+     * Compact the queues if the entries queued that have since been replaced or
+     * removed outnumber the live entries.  Skipped if a sweep is in progress, as
+     * the next write will check again.
+     */
+    private void compactIfStale()
+    {
+        if (queued.get() <= 2L * map.size() + COMPACT_SLACK || !sweepLock.tryLock())
+            return;
+
+        try
+        {
+            int removed = 0;
+
+            Iterator<ExpiryQueue<K,V>> it = expiryQueues.values().iterator();
+            while (it.hasNext())
+            {
+                Iterator<Entry<K,V>> entries = it.next().entries.iterator();
+                while (entries.hasNext())
+                {
+                    Entry<K,V> entry = entries.next();
+                    if (map.get(entry.key) != entry)
+                    {
+                        entries.remove();
+                        removed++;
+                    }
+                }
+            }
+
+            queued.addAndGet(-removed);
+        }
+        finally
+        {
+            sweepLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the expiry queue for the power of two range the time to live given
+     * falls in, creating it if needed.
+     */
+    private ExpiryQueue<K,V> expiryQueue(long ttl)
+    {
+        Integer          key   = Integer.valueOf(ttl <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(ttl));
+        ExpiryQueue<K,V> queue = expiryQueues.get(key);
+
+        if (queue == null)
+        {
+            ExpiryQueue<K,V> created = new ExpiryQueue<K,V>();
+            queue = expiryQueues.putIfAbsent(key, created);
+            if (queue == null)
+                queue = created;
+        }
+
+        return queue;
+    }
+
+    /**
+     * Check the entry for expiry.
+     */
+    private boolean isExpired(Entry<K,V> entry, long now)
+    {
+        return (entry.expires < now);
+    }
+
+    /**
+     * Iterates the valid entries of the backing map.  Expired entries found are
+     * removed, as they would be by a get().
+     */
+    private abstract class ExpiryIterator<T> implements Iterator<T>
+    {
+        private final Iterator<Entry<K,V>> it  = map.values().iterator();
+        private final long                 now = clock.currentTimeMillis();
+        private Entry<K,V>                 next    = null;
+        private Entry<K,V>                 current = null;
+
+        ExpiryIterator()
+        {
+            advance();
+        }
+
+        private void advance()
+        {
+            next = null;
+
+            while (next == null && it.hasNext())
+            {
+                Entry<K,V> entry = it.next();
+
+                if (isExpired(entry, now))
+                    removeExpired(entry);
+                else
+                    next = entry;
+            }
+        }
+
+        public boolean hasNext()
+        {
+            return (next != null);
+        }
+
+        Entry<K,V> nextEntry()
+        {
+            if (next == null)
+                throw new NoSuchElementException();
+
+            current = next;
+            advance();
+            return current;
+        }
+
+        public void remove()
+        {
+            if (current == null)
+                throw new IllegalStateException();
+
+            map.remove(current.key, current); // no-op if replaced since
+            current = null;
+        }
+    }
+
+    private final class EntryIterator extends ExpiryIterator<Map.Entry<K,V>>
+    {
+        public Map.Entry<K,V> next()
+        {
+            return new MapEntry(nextEntry());
+        }
+    }
+
+    private final class KeyIterator extends ExpiryIterator<K>
+    {
+        public K next()
+        {
+            return nextEntry().key;
+        }
+    }
+
+    private final class ValueIterator extends ExpiryIterator<V>
+    {
+        public V next()
+        {
+            return nextEntry().value;
+        }
+    }
+
+    /**
+     * The entrySet() view.  The spliterators are not sized, as size() may count
+     * entries that have timed out.
+     */
+    private final class EntrySet extends AbstractSet<Map.Entry<K,V>>
+    {
+        public Iterator<Map.Entry<K,V>> iterator()
+        {
+            return new EntryIterator();
+        }
+
+        public Spliterator<Map.Entry<K,V>> spliterator()
+        {
+            return Spliterators.spliteratorUnknownSize(iterator(),
+                Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.CONCURRENT);
+        }
+
+        public int size()
+        {
+            return map.size();
+        }
+
+        public boolean contains(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+                return false;
+
+            Map.Entry<?,?> e     = (Map.Entry<?,?>) o;
+            Entry<K,V>     entry = map.get(e.getKey());
+
+            return (entry != null && !isExpired(entry, clock.currentTimeMillis()) &&
+                    Objects.equals(entry.value, e.getValue()));
+        }
+
+        public boolean remove(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+                return false;
+
+            Map.Entry<?,?> e     = (Map.Entry<?,?>) o;
+            Entry<K,V>     entry = map.get(e.getKey());
+
+            return (entry != null && !isExpired(entry, clock.currentTimeMillis()) &&
+                    Objects.equals(entry.value, e.getValue()) &&
+                    map.remove(entry.key, entry));
+        }
+
+        public void clear()
+        {
+            ConcurrentExpiryHashMap.this.clear();
+        }
+    }
+
+    /**
+     * The keySet() view.
+     */
+    private final class KeySet extends AbstractSet<K>
+    {
+        public Iterator<K> iterator()
+        {
+            return new KeyIterator();
+        }
+
+        public Spliterator<K> spliterator()
+        {
+            return Spliterators.spliteratorUnknownSize(iterator(),
+                Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.CONCURRENT);
+        }
+
+        public int size()
+        {
+            return map.size();
+        }
+
+        public boolean contains(Object key)
+        {
+            Entry<K,V> entry = map.get(key);
+            return (entry != null && !isExpired(entry, clock.currentTimeMillis()));
+        }
+
+        public boolean remove(Object key)
+        {
+            return (map.remove(key) != null);
+        }
+
+        public void clear()
+        {
+            ConcurrentExpiryHashMap.this.clear();
+        }
+    }
+
+    /**
+     * The values() view.
+     */
+    private final class Values extends AbstractCollection<V>
+    {
+        public Iterator<V> iterator()
+        {
+            return new ValueIterator();
+        }
+
+        public Spliterator<V> spliterator()
+        {
+            return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.CONCURRENT);
+        }
+
+        public int size()
+        {
+            return map.size();
+        }
+
+        public void clear()
+        {
+            ConcurrentExpiryHashMap.this.clear();
+        }
+    }
+
+    /**
+     * A map entry with it's expiry time.  A new Entry is created on every put(),
+     * so readers never see a half updated value.  Only the expiry time changes,
+     * and only when expiring after access.
+     */
+    private static final class Entry<K,V>
+    {
+        final K                key;
+        final V                value;
+        final long             ttl;
+        volatile long          expires;
+        long                   queuedExpires; // only used by the sweep, under the sweepLock
+
+        Entry(K key, V value, long ttl, long expires)
+        {
+            this.key           = key;
+            this.value         = value;
+            this.ttl           = ttl;
+            this.expires       = expires;
+            this.queuedExpires = expires;
+        }
+    }
+
+    /**
+     * An entry handed out by the entrySet() view.  Setting it's value writes
+     * through to the map, as a put() with the entry's time to live, so it works
+     * with Map.replaceAll(BiFunction) and the other standard helpers.
+     */
+    private final class MapEntry implements Map.Entry<K,V>
+    {
+        private final K    key;
+        private V          value;
+        private final long ttl;
+
+        MapEntry(Entry<K,V> entry)
+        {
+            this.key   = entry.key;
+            this.value = entry.value;
+            this.ttl   = entry.ttl;
+        }
+
+        public K getKey()
+        {
+            return key;
+        }
+
+        public V getValue()
+        {
+            return value;
+        }
+
+        public V setValue(V value)
+        {
+            V previous = this.value;
+
+            put(key, value, ttl);
+            this.value = value;
+            return previous;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+                return false;
+
+            Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+            return (Objects.equals(key, e.getKey()) && Objects.equals(value, e.getValue()));
+        }
+
+        public int hashCode()
+        {
+            return (Objects.hashCode(key) ^ Objects.hashCode(value));
+        }
+
+        public String toString()
+        {
+            return key + "=" + value;
+        }
+    }
+
+    /**
+     * A queue of entries whose times to live fall in the same power of two
+     * range, in the order written.
+     */
+    private static final class ExpiryQueue<K,V>
+    {
+        final ConcurrentLinkedQueue<Entry<K,V>> entries = new ConcurrentLinkedQueue<Entry<K,V>>();
+    }
+}
@@ -0,0 +1,42 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.util;
+
+/**
+ * The source of the current time used by the expiry maps, in milliseconds.
+ *
+ * Only the difference between two readings matters, so a clock need not return
+ * the wall clock time.  Implement this interface to control time in tests.
+ *
+ * @author patkins
+ * @see    CoarseExpiryClock
+ * @see    ExpiryHashMap#setClock(ExpiryClock)
+ * @see    ConcurrentExpiryHashMap#setClock(ExpiryClock)
+ */
+public interface ExpiryClock
+{
+    /** The wall clock, System.currentTimeMillis(). This is the default. */
+    public static final ExpiryClock SYSTEM = new ExpiryClock()
+    {
+        public long currentTimeMillis()
+        {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /** A monotonic clock based on System.nanoTime(), unaffected by changes to the wall clock. */
+    public static final ExpiryClock MONOTONIC = new ExpiryClock()
+    {
+        public long currentTimeMillis()
+        {
+            return System.nanoTime() / 1000000L;
+        }
+    };
+
+    /**
+     * Returns the current time in milliseconds.
+     *
+     * @return the current time.
+     */
+    public long currentTimeMillis();
+}
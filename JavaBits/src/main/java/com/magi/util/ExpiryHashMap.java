@@ -2,13 +2,25 @@
  * See http://www.gnu.org/copyleft/lesser.html for details. */
 package com.magi.util;
 
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * ExpiryHashMap is a HashMap that expires it's entries after a set time period.
@@ -16,25 +28,91 @@ import java.util.Set;
  * Very useful for implementing data caching that expires after a pre-set number
  * of milliseconds.
  *
+ * The timeout set in the constructor applies to every entry, unless a different
+ * time to live is given for an entry with put(Object, Object, long).  By default
+ * an entry expires a set time after it was written, but with
+ * setExpireAfterAccess(true) every successful get() restarts the entry's time
+ * to live, so frequently read entries stay in the map while unused ones expire.
+ *
+ * Entries with the same time to live are held in the order they were last
+ * written (or read, when expiring after access), which is also the order in
+ * which they expire.  Timing out entries therefore only visits the expired
+ * entries at the head of each of these lists, never the whole map.  Each
+ * distinct time to live has it's own list, found by a hash lookup and dropped
+ * as soon as it is empty, so a put costs the same however many are in use, and
+ * only the times to live of live entries are held.
+ *
+ * Each entry holds it's expiry time as a primitive long, and is updated in place
+ * when the key is written again, so replacing a value allocates nothing.
+ *
+ * The map can optionally be limited to a maximum number of entries, see
+ * setMaxSize(int).  When full, expired entries are dropped first, and then the
+ * least recently used entries are evicted using a segmented LRU policy: new
+ * entries start in a probationary segment and are only promoted to the
+ * protected segment when they are read again, so a scan of one-off keys cannot
+ * flush out the frequently used entries.
+ *
+ * Expired entries can also be timed out by a shared background thread, see
+ * setBackgroundTimeout(long), and the source of the current time can be
+ * changed with setClock(ExpiryClock).
+ *
+ * Hit, miss, expiry, eviction and sweep statistics can be recorded with
+ * setRecordStats(true), read with getStats(), and published through JMX
+ * with registerStatsMBean(String), until unregisterStatsMBean() is called.
+ *
+ * The entrySet(), keySet() and values() views are backed by the map, and never
+ * copy it.  Their iterators skip timed out entries, and visit the live entries
+ * in expiry order, oldest first.  Like a HashMap the iterators are fail-fast:
+ * changing the order of the entries other than through the iterator - putting
+ * or removing a key, timing out entries, or a get() when expiring after access
+ * - causes a ConcurrentModificationException.  Note that size() and the size
+ * of the views may still count entries that have timed out.
+ *
  * NOTE: Like HashMap, this object is not thread safe. You need to synchronize
- * any multi-threaded access to this object.
+ * any multi-threaded access to this object.  If a background timeout is used,
+ * you must synchronize on this map instance, as that is what the background
+ * thread synchronizes on.
  *
  * @author  patkins
- * @version Revision 1.1
+ * @version Revision 1.8
+ * @see     ConcurrentExpiryHashMap
  */
-public class ExpiryHashMap implements Map
+public class ExpiryHashMap<K,V> extends AbstractMap<K,V> implements Map<K,V>
 {
     private long    timeout = 600000; // default is 10 minutes
-    private Long    lastCleaned = new Long(System.currentTimeMillis());
+    private ExpiryClock clock = ExpiryClock.SYSTEM;
+    private long    lastCleaned = clock.currentTimeMillis();
     private boolean autoTimeout = false;
-    private Map     map = null;
+    private boolean expireAfterAccess = false;
+    private int     maxSweepSize = 1000; // max entries removed per periodic sweep
+    private int     maxSize = 0;         // max entries held, zero for no limit
+    private int     modCount = 0;        // changes to the expiry order
+    private HashMap<K,Entry<K,V>> map = null;
+    private ScheduledFuture<?> backgroundTimeout = null;
+    private ExpiryStatsCounter stats = null;
+
+    // Entries in expiry order, one list per distinct time to live
+    private ExpiryList<K,V>                     defaultList;
+    private final List<ExpiryList<K,V>>         expiryLists = new ArrayList<ExpiryList<K,V>>();
+    private final HashMap<Long,ExpiryList<K,V>> listsByTtl  = new HashMap<Long,ExpiryList<K,V>>();
+    private long earliestExpiry = Long.MAX_VALUE; // no list head expires before this
+
+    // Segmented LRU lists, only maintained when a maximum size is set
+    private final AccessList<K,V> probation = new AccessList<K,V>();
+    private final AccessList<K,V> protect   = new AccessList<K,V>();
+
+    // Views, created on first use
+    private Set<Map.Entry<K,V>> entrySet = null;
+    private Set<K>              keySet   = null;
+    private Collection<V>       values   = null;
 
     /**
      * Create the map with a default timeout period of 10 minutes.
      */
     public ExpiryHashMap()
     {
-        this.map = new HashMap();
+        this.map = new HashMap<K,Entry<K,V>>();
+        this.defaultList = expiryList(timeout);
     }
 
     /**
@@ -45,7 +123,8 @@ public class ExpiryHashMap implements Map
     public ExpiryHashMap(long timeout)
     {
         this.timeout = timeout;
-        this.map = new HashMap();
+        this.map = new HashMap<K,Entry<K,V>>();
+        this.defaultList = expiryList(timeout);
     }
 
     /**
@@ -57,7 +136,8 @@ public class ExpiryHashMap implements Map
     public ExpiryHashMap(long timeout, int initialCapacity)
     {
         this.timeout = timeout;
-        this.map = new HashMap(initialCapacity);
+        this.map = new HashMap<K,Entry<K,V>>(initialCapacity);
+        this.defaultList = expiryList(timeout);
     }
 
     /**
@@ -66,25 +146,62 @@ public class ExpiryHashMap implements Map
      * Retrieve the value Object for this key.
      * If the key does not exist, or the entry has timed out null is returned.
      */
-    public Object get(Object key)
+    public V get(Object key)
     {
         if (autoTimeout)
             periodicTimeoutEntries();
 
-        Object[] value = (Object[]) map.get(key);
+        Entry<K,V> entry = lookup(key);
+
+        if (stats != null)
+        {
+            if (entry == null)
+                stats.recordMiss();
+            else
+                stats.recordHit();
+        }
+
+        return (entry == null ? null : entry.value);
+    }
 
-        if (value == null) // no entry found
+    /**
+     * Returns the valid entry for this key, recording the access, or null if the
+     * key does not exist or the entry has timed out.
+     */
+    private Entry<K,V> lookup(Object key)
+    {
+        Entry<K,V> entry = map.get(key);
+
+        if (entry == null) // no entry found
             return null;
 
-        if ( isExpired(value[0]) )
+        long now = clock.currentTimeMillis();
+
+        if ( isExpired(entry, now) )
         {
             // Map entry has timed out - remove it and return null
-            map.remove(key);
+            removeEntry(entry);
+
+            if (stats != null)
+                stats.recordExpirations(1);
             return null;
         }
 
+        if (expireAfterAccess)
+        {
+            // Restart the time to live - moves to the end of the expiry order
+            entry.expires = now + entry.list.ttl;
+            entry.list.remove(entry);
+            entry.list.addLast(entry);
+            noteExpiry(entry.expires);
+            modCount++;
+        }
+
+        if (maxSize > 0)
+            recordAccess(entry);
+
         // Return the entry found - entry is still valid
-        return value[1];
+        return entry;
     }
 
     /**
@@ -92,55 +209,54 @@ public class ExpiryHashMap implements Map
      *
      * Put a new timestamped key/value pair into the map.
      */
-    public Object put(Object key, Object value)
+    public V put(K key, V value)
     {
-        // Insert the new key/value pair with a current timestamp
-        Object[] obj = new Object[2];
-        obj[0] = new Long(System.currentTimeMillis());
-        obj[1] = value;
-
-        obj = (Object[]) map.put(key, obj);
+        return put(key, value, timeout);
+    }
 
-        if (obj != null)
-        {
-            if ( !isExpired(obj[0]) )
-                return obj[1]; // previous entry still valid - return it
-        }
+    /**
+     * Put a new timestamped key/value pair into the map, which expires after the
+     * time to live given rather than the map's timeout period.
+     *
+     * @param  key the key.
+     * @param  value the value.
+     * @param  ttl the time to live of this entry in milliseconds.
+     * @return the previous value if it was still valid, otherwise null.
+     */
+    public V put(K key, V value, long ttl)
+    {
+        V previous = putEntry(key, value, ttl, clock.currentTimeMillis());
 
         if (autoTimeout)
             periodicTimeoutEntries();
 
-        return null;
+        return previous;
     }
 
     /* implements Map.clear() */
     public void clear()
     {
         map.clear();
+        expiryLists.clear();
+        listsByTtl.clear();
+        defaultList = expiryList(timeout);
+        probation.clear();
+        protect.clear();
+        earliestExpiry = Long.MAX_VALUE;
+        modCount++;
     }
 
     /**
      * Scan map and remove any timed out entries.
      * This is not necessary but is recommended for reducing memory usage.
      *
+     * Only the expired entries are visited, as they are always the oldest.
+     *
      * @see #periodicTimeoutEntries()
      */
     public void timeoutEntries()
     {
-        Iterator it = map.keySet().iterator();
-        while (it.hasNext())
-        {
-            Object key = it.next();
-            Object[] obj = (Object[]) map.get(key);
-
-            if (obj != null)
-            {
-                if (isExpired(obj[0]))
-                {
-                    it.remove();
-                }
-            }
-        }
+        sweep(Integer.MAX_VALUE);
     }
 
     /**
@@ -149,22 +265,95 @@ public class ExpiryHashMap implements Map
      * as set in the constructor.  This is not necessary but is recommended for
      * reducing memory usage.
      *
+     * No more than getMaxSweepSize() entries are removed per call, so the cost
+     * to any one get() or put() is bounded.  If more expired entries remain, the
+     * sweep continues on the next call.
+     *
      * @see #timeoutEntries()
+     * @see #setMaxSweepSize(int)
      */
     public void periodicTimeoutEntries()
     {
-        if (isExpired( lastCleaned ))
+        if (lastCleaned + timeout < clock.currentTimeMillis())
         {
-            timeoutEntries();
+            int limit = (maxSweepSize > 0 ? maxSweepSize : Integer.MAX_VALUE);
 
-            lastCleaned = new Long(System.currentTimeMillis());
+            if (sweep(limit) < limit)
+                lastCleaned = clock.currentTimeMillis();
         }
     }
 
+    /**
+     * Time out no more than limit entries, for the background timeout.  The
+     * caller must synchronize on this map.
+     *
+     * @return the number of entries removed.
+     */
+    int reap(int limit)
+    {
+        return sweep(limit);
+    }
+
+    /**
+     * Time out entries, recording the sweep statistics if required.
+     */
+    private int sweep(int limit)
+    {
+        if (stats == null)
+            return timeoutEntries(limit);
+
+        long start   = System.nanoTime();
+        int  removed = timeoutEntries(limit);
+
+        stats.recordSweep(System.nanoTime() - start);
+        return removed;
+    }
+
+    /**
+     * Remove timed out entries from the head of each expiry list, oldest first.
+     *
+     * @param  limit the maximum number of entries to remove.
+     * @return the number of entries removed.
+     */
+    private int timeoutEntries(int limit)
+    {
+        int  removed  = 0;
+        long now      = clock.currentTimeMillis();
+        long earliest = Long.MAX_VALUE;
+
+        for (int i = expiryLists.size() - 1; i >= 0 && removed < limit; i--)
+        {
+            ExpiryList<K,V> list = expiryLists.get(i);
+
+            // All entries after the first live one expire later, so stop there
+            // An emptied list is dropped, and replaced at i by one already swept
+            while (removed < limit && list.head != null && isExpired(list.head, now))
+            {
+                removeEntry(list.head);
+                removed++;
+            }
+
+            if (list.head != null && list.head.expires < earliest)
+                earliest = list.head.expires;
+        }
+
+        if (removed < limit)
+            earliestExpiry = earliest; // every list was swept
+
+        if (stats != null && removed > 0)
+            stats.recordExpirations(removed);
+
+        return removed;
+    }
+
     /* Implements Map.containsKey(Object) */
     public boolean containsKey(Object key)
     {
-        return (get(key) != null);
+        if (autoTimeout)
+            periodicTimeoutEntries();
+
+        Entry<K,V> entry = lookup(key);
+        return (entry != null && entry.value != null);
     }
 
     /**
@@ -175,21 +364,21 @@ public class ExpiryHashMap implements Map
      */
     public boolean containsValue(Object value)
     {
-        Iterator it = map.keySet().iterator();
+        long                 now = clock.currentTimeMillis();
+        Iterator<Entry<K,V>> it  = map.values().iterator();
         while (it.hasNext())
         {
-            Object key = it.next();
-            Object[] obj = (Object[]) map.get(key);
-            if ( !isExpired(obj[0]) )
+            Entry<K,V> entry = it.next();
+            if ( !isExpired(entry, now) )
             {
                 if (value == null)
                 {
-                    if (obj[1] == null)
+                    if (entry.value == null)
                     {
                         return true;
                     }
                 }
-                else if (value.equals(obj[1]))
+                else if (value.equals(entry.value))
                 {
                     return true;
                 }
@@ -197,16 +386,28 @@ public class ExpiryHashMap implements Map
             else // entry expired - take this opportunity to remove it
             {
                 it.remove();
+                detach(entry);
+
+                if (stats != null)
+                    stats.recordExpirations(1);
             }
         }
 
         return false;
     }
 
-    /* Map.entrySet() - not implemented */
-    public Set entrySet()
+    /**
+     * Implements Map.entrySet()
+     *
+     * Returns a view of the valid (not timed out) entries, in expiry order.
+     * Setting the value of an entry does not restart it's time to live.
+     */
+    public Set<Map.Entry<K,V>> entrySet()
     {
-        throw new RuntimeException("This method is not yet implemented.");
+        if (entrySet == null)
+            entrySet = new EntrySet();
+
+        return entrySet;
     }
 
     /* implements Map.isEmpty() */
@@ -215,10 +416,18 @@ public class ExpiryHashMap implements Map
         return map.isEmpty();
     }
 
-    /* implements Map.keySet() */
-    public Set keySet()
+    /**
+     * Implements Map.keySet()
+     *
+     * Returns a view of the keys of the valid (not timed out) entries, in
+     * expiry order.
+     */
+    public Set<K> keySet()
     {
-        return map.keySet();
+        if (keySet == null)
+            keySet = new KeySet();
+
+        return keySet;
     }
 
     /**
@@ -226,29 +435,30 @@ public class ExpiryHashMap implements Map
      *
      * Put all Map entries into this ExpiryHashMap, with a current timestamp.
      */
-    public void putAll(Map inMap)
+    public void putAll(Map<? extends K, ? extends V> inMap)
     {
-        Long timestamp = new Long(System.currentTimeMillis());
-        Iterator it = inMap.keySet().iterator();
+        long timestamp = clock.currentTimeMillis();
+        Iterator<? extends Map.Entry<? extends K, ? extends V>> it = inMap.entrySet().iterator();
         while (it.hasNext())
         {
-            Object key = it.next();
+            Map.Entry<? extends K, ? extends V> in = it.next();
 
-            Object[] obj = new Object[2];
-            obj[0] = timestamp;
-            obj[1] = inMap.get(key);
-
-            this.map.put(key, obj);
+            putEntry(in.getKey(), in.getValue(), timeout, timestamp);
         }
     }
 
     /* implements Map.remove(Object) */
-    public Object remove(Object key)
+    public V remove(Object key)
     {
-        Object[] obj = (Object[]) map.remove(key);
+        Entry<K,V> entry = map.remove(key);
 
-        if (obj != null && !isExpired(obj[0]))
-            return obj[1];
+        if (entry == null)
+            return null;
+
+        detach(entry);
+
+        if (!isExpired(entry, clock.currentTimeMillis()))
+            return entry.value;
 
         return null;
     }
@@ -262,31 +472,15 @@ public class ExpiryHashMap implements Map
     /**
      * Implements Map.values()
      *
-     * Returns a Collection of value objects that are still valid (not timed out).
+     * Returns a view of the value objects that are still valid (not timed out),
+     * in expiry order.
      */
-    public Collection values()
+    public Collection<V> values()
     {
-        List vcoll = new ArrayList();
-        Iterator it = map.keySet().iterator();
-        while (it.hasNext())
-        {
-            Object key = it.next();
-            Object[] obj = (Object[]) map.get(key);
+        if (values == null)
+            values = new Values();
 
-            if (obj != null)
-            {
-                if (!isExpired(obj[0]))
-                {
-                    vcoll.add(obj[1]);
-                }
-                else // expired - take this opportunity to remove it
-                {
-                    map.remove(key);
-                }
-            }
-        }
-
-        return vcoll;
+        return values;
     }
 
     /**
@@ -304,10 +498,749 @@ public class ExpiryHashMap implements Map
     }
 
     /**
-     * Check the timestamp object for expiry.
+     * Sets this instance to restart an entry's time to live whenever it is read
+     * with get(), rather than only when it is written.
+     *
+     * @param expireAfterAccess true to expire entries a set time after last access.
+     */
+    public void setExpireAfterAccess(boolean expireAfterAccess)
+    {
+        this.expireAfterAccess = expireAfterAccess;
+    }
+
+    public boolean isExpireAfterAccess()
+    {
+        return this.expireAfterAccess;
+    }
+
+    /**
+     * Sets the maximum number of entries removed by each periodic sweep.
+     * A value of zero or less means no limit.
+     *
+     * @param maxSweepSize the maximum entries removed per periodicTimeoutEntries() call.
+     */
+    public void setMaxSweepSize(int maxSweepSize)
+    {
+        this.maxSweepSize = maxSweepSize;
+    }
+
+    public int getMaxSweepSize()
+    {
+        return this.maxSweepSize;
+    }
+
+    /**
+     * Sets the maximum number of entries held in the map.  Once the map is
+     * full, putting a new key first drops any expired entries, and then evicts
+     * the least recently used entry.  A value of zero or less means no limit.
+     *
+     * @param maxSize the maximum number of entries.
+     */
+    public void setMaxSize(int maxSize)
+    {
+        if (maxSize > 0 && this.maxSize <= 0)
+        {
+            // Start tracking usage - existing entries enter in map order
+            Iterator<Entry<K,V>> it = map.values().iterator();
+            while (it.hasNext())
+                probation.addLast(it.next());
+        }
+        else if (maxSize <= 0 && this.maxSize > 0)
+        {
+            Iterator<Entry<K,V>> it = map.values().iterator();
+            while (it.hasNext())
+            {
+                Entry<K,V> entry = it.next();
+                entry.accessBefore = null;
+                entry.accessAfter  = null;
+                entry.protect      = false;
+            }
+            probation.clear();
+            protect.clear();
+        }
+
+        this.maxSize = maxSize;
+
+        if (maxSize > 0)
+            evict();
+    }
+
+    public int getMaxSize()
+    {
+        return this.maxSize;
+    }
+
+    /**
+     * Sets the clock used to timestamp and expire entries.  This should be set
+     * before any entries are put into the map.
+     *
+     * @param clock the clock to use, for example a CoarseExpiryClock.
+     */
+    public void setClock(ExpiryClock clock)
+    {
+        this.clock          = clock;
+        this.lastCleaned    = clock.currentTimeMillis();
+        this.earliestExpiry = Long.MIN_VALUE; // times may differ - look next time
+    }
+
+    public ExpiryClock getClock()
+    {
+        return this.clock;
+    }
+
+    /**
+     * Sets this instance to time out it's entries on a shared background thread
+     * every period given, so that expired entries are released even if the map
+     * is not being used.  The background thread synchronizes on this map.
+     * A period of zero or less stops the background timeout.
+     *
+     * @param period the period between timeouts in milliseconds.
+     */
+    public synchronized void setBackgroundTimeout(long period)
+    {
+        if (backgroundTimeout != null)
+            backgroundTimeout.cancel(false);
+
+        backgroundTimeout = (period > 0 ? ExpiryReaper.schedule(this, period) : null);
+    }
+
+    /**
+     * Sets this instance to record hit, miss, expiry, eviction and sweep
+     * statistics.  Turning recording on starts all counts from zero, and turning
+     * it off unregisters any statistics MBean.
+     *
+     * @param recordStats true to record statistics.
+     */
+    public void setRecordStats(boolean recordStats)
+    {
+        if (!recordStats)
+        {
+            try
+            {
+                unregisterStatsMBean();
+            }
+            catch (JMException e)
+            {
+                // left registered - it only holds the map weakly
+            }
+            stats = null;
+        }
+        else if (stats == null)
+            stats = new ExpiryStatsCounter(this);
+    }
+
+    public boolean isRecordStats()
+    {
+        return (stats != null);
+    }
+
+    /**
+     * Returns a snapshot of the statistics of this map.  Only the size is
+     * available unless statistics are being recorded.
+     *
+     * @return the current statistics.
+     * @see    #setRecordStats(boolean)
      */
-    private boolean isExpired(Object timestamp)
+    public ExpiryStats getStats()
     {
-        return (((Long)timestamp).longValue() + timeout < System.currentTimeMillis());
+        ExpiryStatsCounter current = stats;
+
+        if (current == null)
+            return new ExpiryStats(0, 0, 0, 0, 0, 0, size());
+
+        return current.snapshot();
+    }
+
+    /**
+     * Publish the statistics of this map through JMX, under the name
+     * "com.magi.util:type=ExpiryHashMap,name=&lt;name&gt;".  Statistics
+     * recording is turned on if it is not already.
+     *
+     * @param  name the name of this map.
+     * @return the name the MBean was registered under, used to unregister it.
+     * @throws JMException if the MBean could not be registered.
+     */
+    public ObjectName registerStatsMBean(String name) throws JMException
+    {
+        setRecordStats(true);
+        return stats.register("ExpiryHashMap", name);
+    }
+
+    /**
+     * Remove the statistics MBean of this map, registered with
+     * registerStatsMBean(String), from JMX.
+     *
+     * @return false if no MBean was registered.
+     * @throws JMException if the MBean could not be unregistered.
+     */
+    public boolean unregisterStatsMBean() throws JMException
+    {
+        ExpiryStatsCounter counter = stats;
+
+        return (counter != null && counter.unregister());
+    }
+
+    /**
+     * Put the key/value pair with the time to live given, re-using the existing
+     * entry for the key if there is one.
+     *
+     * @return the previous value if it was still valid, otherwise null.
+     */
+    private V putEntry(K key, V value, long ttl, long now)
+    {
+        Entry<K,V>      entry = map.get(key);
+        ExpiryList<K,V> list  = (ttl == timeout ? defaultList : expiryList(ttl));
+
+        modCount++;
+
+        if (entry == null)
+        {
+            entry = new Entry<K,V>(key, value, now + ttl);
+            map.put(key, entry);
+            list.addLast(entry);
+            noteExpiry(entry.expires);
+
+            if (maxSize > 0)
+            {
+                probation.addLast(entry);
+                evict();
+            }
+            return null;
+        }
+
+        V previous = (isExpired(entry, now) ? null : entry.value);
+
+        // Re-written entry moves to the end of the expiry order
+        ExpiryList<K,V> previousList = entry.list;
+
+        entry.value   = value;
+        entry.expires = now + ttl;
+        previousList.remove(entry);
+        list.addLast(entry);
+        noteExpiry(entry.expires);
+        dropIfEmpty(previousList);
+
+        if (maxSize > 0)
+            recordAccess(entry);
+
+        return previous;
+    }
+
+    /**
+     * Returns the expiry list for the time to live given, creating it if needed.
+     */
+    private ExpiryList<K,V> expiryList(long ttl)
+    {
+        Long            key  = Long.valueOf(ttl);
+        ExpiryList<K,V> list = listsByTtl.get(key);
+
+        if (list == null)
+        {
+            list       = new ExpiryList<K,V>(ttl);
+            list.index = expiryLists.size();
+            expiryLists.add(list);
+            listsByTtl.put(key, list);
+        }
+
+        return list;
+    }
+
+    /**
+     * Drop the list given if it is now empty, unless it is the default list.
+     * The last list is moved into it's place, so an iteration or sweep running
+     * down the lists from the end, which has already visited the last list,
+     * still visits every other list once.
+     */
+    private void dropIfEmpty(ExpiryList<K,V> list)
+    {
+        if (list.head != null || list == defaultList)
+            return;
+
+        ExpiryList<K,V> last = expiryLists.remove(expiryLists.size() - 1);
+        if (last != list)
+        {
+            expiryLists.set(list.index, last);
+            last.index = list.index;
+        }
+
+        listsByTtl.remove(Long.valueOf(list.ttl));
+    }
+
+    /**
+     * Keep the earliest expiry a lower bound of every list head, for an entry
+     * added to the end of a list.
+     */
+    private void noteExpiry(long expires)
+    {
+        if (expires < earliestExpiry)
+            earliestExpiry = expires;
+    }
+
+    /**
+     * Remove entries until the map is back within it's maximum size.  Expired
+     * entries go first, then probationary entries, then protected entries, each
+     * least recently used first.  The lists are only looked at for expired
+     * entries if the earliest expiry has passed, so when nothing has expired a
+     * full map evicts without visiting every time to live.
+     */
+    private void evict()
+    {
+        if (map.size() > maxSize && earliestExpiry < clock.currentTimeMillis())
+            timeoutEntries(map.size() - maxSize);
+
+        while (map.size() > maxSize)
+        {
+            if (probation.head != null)
+                removeEntry(probation.head);
+            else
+                removeEntry(protect.head);
+
+            if (stats != null)
+                stats.recordEviction();
+        }
+    }
+
+    /**
+     * Record a read or re-write of the entry for the segmented LRU.  A
+     * probationary entry is promoted to the protected segment, and the protected
+     * segment is limited to 80% of the maximum size, the least recently used
+     * overflow being demoted back to probation.  At least one slot is always
+     * left to probation, so that a new entry is not itself the first evicted.
+     */
+    private void recordAccess(Entry<K,V> entry)
+    {
+        if (entry.protect)
+        {
+            protect.remove(entry);
+            protect.addLast(entry);
+            return;
+        }
+
+        probation.remove(entry);
+        protect.addLast(entry);
+        entry.protect = true;
+
+        if (protect.size > Math.min(maxSize - maxSize / 5, maxSize - 1))
+        {
+            Entry<K,V> demoted = protect.head;
+            protect.remove(demoted);
+            probation.addLast(demoted);
+            demoted.protect = false;
+        }
+    }
+
+    /**
+     * Remove the entry from both the map and the expiry order.
+     */
+    private void removeEntry(Entry<K,V> entry)
+    {
+        map.remove(entry.key);
+        detach(entry);
+    }
+
+    /**
+     * Unlink a removed entry from the expiry order and any LRU segment.
+     */
+    private void detach(Entry<K,V> entry)
+    {
+        ExpiryList<K,V> list = entry.list;
+
+        list.remove(entry);
+        dropIfEmpty(list);
+        modCount++;
+
+        if (maxSize > 0)
+        {
+            if (entry.protect)
+                protect.remove(entry);
+            else
+                probation.remove(entry);
+        }
+    }
+
+    /**
+     * Check the entry for expiry.
+     */
+    private boolean isExpired(Entry<K,V> entry, long now)
+    {
+        return (entry.expires < now);
+    }
+
+    /**
+     * Returns the valid entry for this key without recording an access, or null.
+     */
+    private Entry<K,V> liveEntry(Object key)
+    {
+        Entry<K,V> entry = map.get(key);
+
+        if (entry == null || isExpired(entry, clock.currentTimeMillis()))
+            return null;
+
+        return entry;
+    }
+
+    /**
+     * Iterates the valid entries in expiry order, one expiry list after another.
+     * Entries that time out while iterating are still returned.
+     */
+    private abstract class ExpiryIterator<T> implements Iterator<T>
+    {
+        private final long now = clock.currentTimeMillis();
+        private int        expectedModCount = modCount;
+        private int        index   = expiryLists.size();
+        private Entry<K,V> next    = null;
+        private Entry<K,V> current = null;
+
+        ExpiryIterator()
+        {
+            advance(null);
+        }
+
+        /**
+         * Find the next valid entry after the entry given, or from the next
+         * expiry list if null.  The lists are visited in the same order as
+         * timeoutEntries().
+         */
+        private void advance(Entry<K,V> entry)
+        {
+            entry = (entry == null ? null : entry.after);
+
+            while (true)
+            {
+                while (entry != null && isExpired(entry, now))
+                    entry = entry.after;
+
+                if (entry != null || --index < 0)
+                    break;
+
+                entry = expiryLists.get(index).head;
+            }
+
+            next = entry;
+        }
+
+        public boolean hasNext()
+        {
+            return (next != null);
+        }
+
+        Entry<K,V> nextEntry()
+        {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+
+            if (next == null)
+                throw new NoSuchElementException();
+
+            current = next;
+            advance(current);
+            return current;
+        }
+
+        public void remove()
+        {
+            if (current == null)
+                throw new IllegalStateException();
+
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+
+            removeEntry(current);
+            current = null;
+            expectedModCount = modCount;
+        }
+    }
+
+    private final class EntryIterator extends ExpiryIterator<Map.Entry<K,V>>
+    {
+        public Map.Entry<K,V> next()
+        {
+            return nextEntry();
+        }
+    }
+
+    private final class KeyIterator extends ExpiryIterator<K>
+    {
+        public K next()
+        {
+            return nextEntry().key;
+        }
+    }
+
+    private final class ValueIterator extends ExpiryIterator<V>
+    {
+        public V next()
+        {
+            return nextEntry().value;
+        }
+    }
+
+    /**
+     * The entrySet() view.  The spliterator is not sized, as size() may count
+     * entries that have timed out.
+     */
+    private final class EntrySet extends AbstractSet<Map.Entry<K,V>>
+    {
+        public Iterator<Map.Entry<K,V>> iterator()
+        {
+            return new EntryIterator();
+        }
+
+        public Spliterator<Map.Entry<K,V>> spliterator()
+        {
+            return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.DISTINCT);
+        }
+
+        public int size()
+        {
+            return map.size();
+        }
+
+        public boolean contains(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+                return false;
+
+            Map.Entry<?,?> e     = (Map.Entry<?,?>) o;
+            Entry<K,V>     entry = liveEntry(e.getKey());
+
+            return (entry != null && Objects.equals(entry.value, e.getValue()));
+        }
+
+        public boolean remove(Object o)
+        {
+            if (!contains(o))
+                return false;
+
+            removeEntry(map.get(((Map.Entry<?,?>) o).getKey()));
+            return true;
+        }
+
+        public void clear()
+        {
+            ExpiryHashMap.this.clear();
+        }
+    }
+
+    /**
+     * The keySet() view.
+     */
+    private final class KeySet extends AbstractSet<K>
+    {
+        public Iterator<K> iterator()
+        {
+            return new KeyIterator();
+        }
+
+        public Spliterator<K> spliterator()
+        {
+            return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.DISTINCT);
+        }
+
+        public int size()
+        {
+            return map.size();
+        }
+
+        public boolean contains(Object key)
+        {
+            return (liveEntry(key) != null);
+        }
+
+        public boolean remove(Object key)
+        {
+            Entry<K,V> entry = map.get(key);
+            if (entry == null)
+                return false;
+
+            removeEntry(entry);
+            return true;
+        }
+
+        public void clear()
+        {
+            ExpiryHashMap.this.clear();
+        }
+    }
+
+    /**
+     * The values() view.
+     */
+    private final class Values extends AbstractCollection<V>
+    {
+        public Iterator<V> iterator()
+        {
+            return new ValueIterator();
+        }
+
+        public Spliterator<V> spliterator()
+        {
+            return Spliterators.spliteratorUnknownSize(iterator(), 0);
+        }
+
+        public int size()
+        {
+            return map.size();
+        }
+
+        public void clear()
+        {
+            ExpiryHashMap.this.clear();
+        }
+    }
+
+    /**
+     * A map entry with it's expiry time, linked in expiry order, and in usage
+     * order when the map has a maximum size.
+     */
+    private static final class Entry<K,V> implements Map.Entry<K,V>
+    {
+        final K         key;
+        V               value;
+        long            expires;
+        ExpiryList<K,V> list;
+        Entry<K,V>      before;
+        Entry<K,V>      after;
+        Entry<K,V>      accessBefore;
+        Entry<K,V>      accessAfter;
+        boolean         protect;
+
+        Entry(K key, V value, long expires)
+        {
+            this.key     = key;
+            this.value   = value;
+            this.expires = expires;
+        }
+
+        public K getKey()
+        {
+            return key;
+        }
+
+        public V getValue()
+        {
+            return value;
+        }
+
+        public V setValue(V value)
+        {
+            V previous = this.value;
+            this.value = value;
+            return previous;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Map.Entry))
+                return false;
+
+            Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+            return (Objects.equals(key, e.getKey()) && Objects.equals(value, e.getValue()));
+        }
+
+        public int hashCode()
+        {
+            return (Objects.hashCode(key) ^ Objects.hashCode(value));
+        }
+
+        public String toString()
+        {
+            return key + "=" + value;
+        }
+    }
+
+    /**
+     * A doubly linked list of entries sharing the same time to live, in the
+     * order they were written (or read, when expiring after access).
+     */
+    private static final class ExpiryList<K,V>
+    {
+        final long ttl;
+        int        index; // position in expiryLists
+        Entry<K,V> head;
+        Entry<K,V> tail;
+
+        ExpiryList(long ttl)
+        {
+            this.ttl = ttl;
+        }
+
+        void addLast(Entry<K,V> entry)
+        {
+            entry.list   = this;
+            entry.before = tail;
+            entry.after  = null;
+
+            if (tail == null)
+                head = entry;
+            else
+                tail.after = entry;
+
+            tail = entry;
+        }
+
+        void remove(Entry<K,V> entry)
+        {
+            if (entry.before == null)
+                head = entry.after;
+            else
+                entry.before.after = entry.after;
+
+            if (entry.after == null)
+                tail = entry.before;
+            else
+                entry.after.before = entry.before;
+
+            entry.before = null;
+            entry.after  = null;
+        }
+    }
+
+    /**
+     * A doubly linked list of entries in least to most recently used order.
+     */
+    private static final class AccessList<K,V>
+    {
+        Entry<K,V> head;
+        Entry<K,V> tail;
+        int        size;
+
+        void addLast(Entry<K,V> entry)
+        {
+            entry.accessBefore = tail;
+            entry.accessAfter  = null;
+
+            if (tail == null)
+                head = entry;
+            else
+                tail.accessAfter = entry;
+
+            tail = entry;
+            size++;
+        }
+
+        void remove(Entry<K,V> entry)
+        {
+            if (entry.accessBefore == null)
+                head = entry.accessAfter;
+            else
+                entry.accessBefore.accessAfter = entry.accessAfter;
+
+            if (entry.accessAfter == null)
+                tail = entry.accessBefore;
+            else
+                entry.accessAfter.accessBefore = entry.accessBefore;
+
+            entry.accessBefore = null;
+            entry.accessAfter  = null;
+            size--;
+        }
+
+        void clear()
+        {
+            head = null;
+            tail = null;
+            size = 0;
+        }
     }
 }
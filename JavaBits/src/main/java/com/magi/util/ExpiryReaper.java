@@ -0,0 +1,124 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.util;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single shared daemon thread that times out the entries of the expiry maps
+ * in the background, off the request path, and a second that ticks the coarse
+ * clocks, so a long timeout never holds the clocks back.
+ *
+ * Each timeout removes no more than a batch of entries at a time, so an
+ * ExpiryHashMap is only synchronized on briefly.  If more expired entries
+ * remain, the timeout carries on after any other background work that is due.
+ *
+ * Maps are only weakly referenced, so a map that is no longer used is garbage
+ * collected as normal, and it's background timeout is then cancelled.
+ *
+ * @author patkins
+ */
+final class ExpiryReaper
+{
+    private static final int REAP_BATCH = 1000; // max entries removed per map per run
+
+    private static final ScheduledThreadPoolExecutor executor      = newExecutor("ExpiryReaper");
+    private static final ScheduledThreadPoolExecutor clockExecutor = newExecutor("ExpiryClock");
+
+    private ExpiryReaper() { }
+
+    private static ScheduledThreadPoolExecutor newExecutor(final String name)
+    {
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.setRemoveOnCancelPolicy(true);
+        return pool;
+    }
+
+    /**
+     * Periodically time out the entries of the map given.  An ExpiryHashMap is
+     * synchronized on while each batch of it's entries is timed out.
+     *
+     * @param  map an ExpiryHashMap or ConcurrentExpiryHashMap.
+     * @param  period the period between timeouts in milliseconds.
+     * @return the future used to cancel the background timeout.
+     */
+    static ScheduledFuture<?> schedule(Object map, long period)
+    {
+        Reap reap = new Reap(map);
+
+        synchronized (reap)
+        {
+            reap.future = executor.scheduleAtFixedRate(reap, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        return reap.future;
+    }
+
+    /**
+     * Run the clock tick given on the clock thread at a fixed rate.  The task
+     * must be short, as it delays the other clocks.
+     */
+    static ScheduledFuture<?> scheduleTick(Runnable tick, long period)
+    {
+        return clockExecutor.scheduleAtFixedRate(tick, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static final class Reap implements Runnable
+    {
+        private final WeakReference<Object> map;
+        private ScheduledFuture<?>          future;
+
+        Reap(Object map)
+        {
+            this.map = new WeakReference<Object>(map);
+        }
+
+        public void run()
+        {
+            Object target = map.get();
+            int    removed;
+
+            if (target == null)
+            {
+                synchronized (this)
+                {
+                    future.cancel(false); // map has been garbage collected
+                }
+                return;
+            }
+
+            if (target instanceof ExpiryHashMap<?,?>)
+            {
+                synchronized (target)
+                {
+                    removed = ((ExpiryHashMap<?,?>) target).reap(REAP_BATCH);
+                }
+            }
+            else
+            {
+                removed = ((ConcurrentExpiryHashMap<?,?>) target).reap(REAP_BATCH);
+            }
+
+            // More to time out - carry on once the other work due has run
+            if (removed >= REAP_BATCH && !isCancelled())
+                executor.execute(this);
+        }
+
+        private synchronized boolean isCancelled()
+        {
+            return future.isCancelled();
+        }
+    }
+}
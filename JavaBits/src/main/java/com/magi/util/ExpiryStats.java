@@ -0,0 +1,93 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.util;
+
+/**
+ * An immutable snapshot of the statistics of an expiry map.
+ *
+ * Counts start at zero when statistics recording is turned on for the map, and
+ * only the size is available while recording is off.
+ *
+ * @author patkins
+ * @see    ExpiryHashMap#getStats()
+ * @see    ConcurrentExpiryHashMap#getStats()
+ */
+public final class ExpiryStats
+{
+    private final long hitCount;
+    private final long missCount;
+    private final long expirationCount;
+    private final long evictionCount;
+    private final long sweepCount;
+    private final long sweepTimeNanos;
+    private final int  size;
+
+    ExpiryStats( long hitCount, long missCount, long expirationCount,
+                 long evictionCount, long sweepCount, long sweepTimeNanos, int size )
+    {
+        this.hitCount        = hitCount;
+        this.missCount       = missCount;
+        this.expirationCount = expirationCount;
+        this.evictionCount   = evictionCount;
+        this.sweepCount      = sweepCount;
+        this.sweepTimeNanos  = sweepTimeNanos;
+        this.size            = size;
+    }
+
+    /** Returns the number of get() calls that found a valid entry. */
+    public long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /** Returns the number of get() calls that found no entry, or an expired entry. */
+    public long getMissCount()
+    {
+        return missCount;
+    }
+
+    /** Returns the ratio of hits to get() calls, or 1.0 if there have been no calls. */
+    public double getHitRate()
+    {
+        long requests = hitCount + missCount;
+        return (requests == 0 ? 1.0 : (double) hitCount / requests);
+    }
+
+    /** Returns the number of entries removed because they timed out. */
+    public long getExpirationCount()
+    {
+        return expirationCount;
+    }
+
+    /** Returns the number of valid entries removed to keep within the maximum size. */
+    public long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /** Returns the number of timeout sweeps performed. */
+    public long getSweepCount()
+    {
+        return sweepCount;
+    }
+
+    /** Returns the total time spent in timeout sweeps, in nanoseconds. */
+    public long getSweepTimeNanos()
+    {
+        return sweepTimeNanos;
+    }
+
+    /** Returns the number of entries in the map, which may include entries not yet timed out. */
+    public int getSize()
+    {
+        return size;
+    }
+
+    public String toString()
+    {
+        return "ExpiryStats[hits=" + hitCount + ", misses=" + missCount +
+               ", expirations=" + expirationCount + ", evictions=" + evictionCount +
+               ", sweeps=" + sweepCount + ", sweepTimeNanos=" + sweepTimeNanos +
+               ", size=" + size + "]";
+    }
+}
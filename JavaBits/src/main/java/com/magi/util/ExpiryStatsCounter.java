@@ -0,0 +1,152 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Statistics counters for an expiry map.  The counters are striped (LongAdder),
+ * so many threads can record hits and misses without contending on one value.
+ *
+ * The map is only weakly referenced, so an MBean left registered does not stop
+ * the map from being garbage collected.  It then reports a size of zero.
+ *
+ * @author patkins
+ */
+final class ExpiryStatsCounter implements ExpiryStatsMBean
+{
+    private final WeakReference<Map<?,?>> map;
+    private final List<ObjectName>        registered = new ArrayList<ObjectName>();
+    private final LongAdder hits        = new LongAdder();
+    private final LongAdder misses      = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder evictions   = new LongAdder();
+    private final LongAdder sweeps      = new LongAdder();
+    private final LongAdder sweepNanos  = new LongAdder();
+
+    ExpiryStatsCounter(Map<?,?> map)
+    {
+        this.map = new WeakReference<Map<?,?>>(map);
+    }
+
+    void recordHit()
+    {
+        hits.increment();
+    }
+
+    void recordMiss()
+    {
+        misses.increment();
+    }
+
+    void recordExpirations(int count)
+    {
+        expirations.add(count);
+    }
+
+    void recordEviction()
+    {
+        evictions.increment();
+    }
+
+    void recordSweep(long nanos)
+    {
+        sweeps.increment();
+        sweepNanos.add(nanos);
+    }
+
+    ExpiryStats snapshot()
+    {
+        return new ExpiryStats( hits.sum(), misses.sum(), expirations.sum(),
+                                evictions.sum(), sweeps.sum(), sweepNanos.sum(),
+                                getSize() );
+    }
+
+    /**
+     * Register these statistics with the platform MBean server, under the name
+     * "com.magi.util:type=&lt;type&gt;,name=&lt;name&gt;".
+     */
+    synchronized ObjectName register(String type, String name) throws JMException
+    {
+        ObjectName objectName = new ObjectName("com.magi.util:type=" + type +
+                                               ",name=" + ObjectName.quote(name));
+
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+            new StandardMBean(this, ExpiryStatsMBean.class), objectName);
+
+        registered.add(objectName);
+        return objectName;
+    }
+
+    /**
+     * Unregister every name these statistics were registered under.  Names
+     * already unregistered by other means are skipped.
+     *
+     * @return false if there were no names to unregister.
+     */
+    synchronized boolean unregister() throws JMException
+    {
+        if (registered.isEmpty())
+            return false;
+
+        for (ObjectName objectName : registered)
+        {
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName))
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+
+        registered.clear();
+        return true;
+    }
+
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    public double getHitRate()
+    {
+        return snapshot().getHitRate();
+    }
+
+    public long getExpirationCount()
+    {
+        return expirations.sum();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    public long getSweepCount()
+    {
+        return sweeps.sum();
+    }
+
+    public long getSweepTimeMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(sweepNanos.sum());
+    }
+
+    public int getSize()
+    {
+        Map<?,?> current = map.get();
+        return (current != null ? current.size() : 0);
+    }
+}
@@ -0,0 +1,28 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.util;
+
+/**
+ * JMX management interface for the statistics of an expiry map.
+ *
+ * @author patkins
+ * @see    ExpiryStats
+ */
+public interface ExpiryStatsMBean
+{
+    public long getHitCount();
+
+    public long getMissCount();
+
+    public double getHitRate();
+
+    public long getExpirationCount();
+
+    public long getEvictionCount();
+
+    public long getSweepCount();
+
+    public long getSweepTimeMillis();
+
+    public int getSize();
+}
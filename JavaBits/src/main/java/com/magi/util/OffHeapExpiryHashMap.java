@@ -0,0 +1,377 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.util;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * OffHeapExpiryHashMap is an ExpiryHashMap for byte[] values, such as serialized
+ * objects, that stores the values outside of the Java heap.
+ *
+ * Values are copied into slabs of direct memory (see SlabAllocator), so a cache
+ * of many gigabytes does not grow the old generation or the garbage collection
+ * pause times.  Only the keys and a small index entry per key are held on the
+ * heap.  Values larger than the slab size are held in a direct buffer of their
+ * own.
+ *
+ * Entries expire after a set time period, exactly as in the ExpiryHashMap, and
+ * are kept in write order so that timing out entries only visits the expired
+ * entries.  The total off-heap memory is limited, and when it is full the
+ * oldest entries are evicted to make room for new ones.
+ *
+ * Values are copied in on put() and copied out on get(), so changes to the
+ * arrays passed in or returned do not affect the map.
+ *
+ * All methods are synchronized, so this object is thread safe.
+ *
+ * @author  patkins
+ * @version Revision 1.0
+ * @see     ExpiryHashMap
+ */
+public class OffHeapExpiryHashMap
+{
+    private static final int  DEFAULT_SLAB_SIZE  = 1048576;   // 1 MB
+    private static final long DEFAULT_MAX_MEMORY = 1L << 30;  // 1 GB
+
+    private long          timeout = 600000; // default is 10 minutes
+    private ExpiryClock   clock = ExpiryClock.SYSTEM;
+    private long          lastCleaned = clock.currentTimeMillis();
+    private boolean       autoTimeout = false;
+    private final long    maxMemory;
+    private long          largeMemory = 0; // bytes held in dedicated buffers
+    private final SlabAllocator slabs;
+
+    // In write (and expiry) order
+    private final LinkedHashMap<Object,Entry> map = new LinkedHashMap<Object,Entry>();
+
+    /**
+     * Create the map with a default timeout period of 10 minutes, and up to
+     * 1 GB of off-heap memory.
+     */
+    public OffHeapExpiryHashMap()
+    {
+        this(600000, DEFAULT_MAX_MEMORY);
+    }
+
+    /**
+     * Create the map with the specified timeout period in milliseconds, and the
+     * maximum off-heap memory to use in bytes.
+     *
+     * @param timeout timeout period.
+     * @param maxMemory the maximum off-heap memory in bytes.
+     */
+    public OffHeapExpiryHashMap(long timeout, long maxMemory)
+    {
+        this(timeout, maxMemory, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Create the map with the specified timeout period in milliseconds, the
+     * maximum off-heap memory to use in bytes, and the slab size.  Values up to
+     * the slab size share slabs, larger values get a buffer of their own.
+     *
+     * @param timeout timeout period.
+     * @param maxMemory the maximum off-heap memory in bytes.
+     * @param slabSize the slab size in bytes, rounded up to a power of two.
+     */
+    public OffHeapExpiryHashMap(long timeout, long maxMemory, int slabSize)
+    {
+        this.timeout   = timeout;
+        this.maxMemory = maxMemory;
+        this.slabs     = new SlabAllocator(slabSize);
+    }
+
+    /**
+     * Retrieve a copy of the value for this key.
+     * If the key does not exist, or the entry has timed out null is returned.
+     *
+     * @param  key the key.
+     * @return a copy of the value, or null.
+     */
+    public synchronized byte[] get(Object key)
+    {
+        if (autoTimeout)
+            periodicTimeoutEntries();
+
+        Entry entry = map.get(key);
+
+        if (entry == null) // no entry found
+            return null;
+
+        if ( isExpired(entry, clock.currentTimeMillis()) )
+        {
+            // Map entry has timed out - remove it and return null
+            map.remove(key);
+            release(entry);
+            return null;
+        }
+
+        if (entry.large != null)
+        {
+            byte[] value = new byte[entry.length];
+            entry.large.clear();
+            entry.large.get(value);
+            return value;
+        }
+
+        return slabs.read(entry.handle, entry.length);
+    }
+
+    /**
+     * Put a copy of the value into the map, with a current timestamp.  If the
+     * off-heap memory is full, the oldest entries are evicted to make room.
+     * Any existing entry for the key is kept until the new value is placed.
+     *
+     * @param  key the key.
+     * @param  value the value, which may not be null.
+     * @throws IllegalArgumentException if the value could not fit in the maximum memory.
+     */
+    public synchronized void put(Object key, byte[] value)
+    {
+        boolean large = value.length > slabs.getMaxSlotSize();
+
+        // Check it can fit before evicting anything
+        if (value.length > maxMemory)
+            throw new IllegalArgumentException("Value of " + value.length +
+                                               " bytes is larger than the maximum memory.");
+        if (!large && slabs.getMaxSlotSize() > maxMemory)
+            throw new IllegalArgumentException("Slab of " + slabs.getMaxSlotSize() +
+                                               " bytes is larger than the maximum memory.");
+
+        Entry entry = new Entry(clock.currentTimeMillis() + timeout, value.length);
+
+        if (large)
+        {
+            // Empty slabs are released first, then entries evicted until
+            // enough slabs empty out, or the map is empty
+            while (largeMemory + slabs.getReserved() + value.length > maxMemory)
+            {
+                if (slabs.releaseFree() == 0 && !evictOldest())
+                    throw new IllegalStateException("Unable to allocate " + value.length + " bytes off-heap.");
+            }
+
+            entry.large  = ByteBuffer.allocateDirect(value.length);
+            entry.large.put(value);
+            largeMemory += value.length;
+        }
+        else
+        {
+            // Evicted entries free slots, and their slabs once empty are pooled
+            // for any size class
+            long handle = slabs.allocate(value.length, maxMemory - largeMemory);
+            while (handle < 0)
+            {
+                if (!evictOldest())
+                    throw new IllegalStateException("Unable to allocate " + value.length + " bytes off-heap.");
+
+                handle = slabs.allocate(value.length, maxMemory - largeMemory);
+            }
+
+            slabs.write(handle, value);
+            entry.handle = handle;
+        }
+
+        Entry old = map.remove(key); // re-put at the end, in write order
+        if (old != null)
+            release(old);
+
+        map.put(key, entry);
+
+        if (autoTimeout)
+            periodicTimeoutEntries();
+    }
+
+    /**
+     * Remove the entry for this key.
+     *
+     * @param  key the key.
+     * @return true if a valid (not timed out) entry was removed.
+     */
+    public synchronized boolean remove(Object key)
+    {
+        Entry entry = map.remove(key);
+
+        if (entry == null)
+            return false;
+
+        release(entry);
+        return !isExpired(entry, clock.currentTimeMillis());
+    }
+
+    /**
+     * Returns true if a valid (not timed out) entry exists for this key.
+     */
+    public synchronized boolean containsKey(Object key)
+    {
+        Entry entry = map.get(key);
+
+        return (entry != null && !isExpired(entry, clock.currentTimeMillis()));
+    }
+
+    /**
+     * Returns the number of entries, which may include entries not yet timed out.
+     */
+    public synchronized int size()
+    {
+        return map.size();
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return map.isEmpty();
+    }
+
+    /**
+     * Remove all entries, and release all off-heap memory.  The memory is
+     * returned to the operating system once the slab buffers are garbage
+     * collected.
+     */
+    public synchronized void clear()
+    {
+        map.clear();
+        slabs.clear();
+        largeMemory = 0;
+    }
+
+    /**
+     * Scan map and remove any timed out entries, releasing their memory for
+     * re-use.  Only the expired entries are visited, as they are always the
+     * oldest.
+     *
+     * @see #periodicTimeoutEntries()
+     */
+    public synchronized void timeoutEntries()
+    {
+        long            now = clock.currentTimeMillis();
+        Iterator<Entry> it  = map.values().iterator();
+        while (it.hasNext())
+        {
+            Entry entry = it.next();
+
+            if (!isExpired(entry, now))
+                break; // all later entries were written after this one
+
+            it.remove();
+            release(entry);
+        }
+    }
+
+    /**
+     * Periodically scan map and remove any timed out entries.
+     * This method will perform a call to timeoutEntries() every n milliseconds,
+     * as set in the constructor.
+     *
+     * @see #timeoutEntries()
+     */
+    public synchronized void periodicTimeoutEntries()
+    {
+        if (lastCleaned + timeout < clock.currentTimeMillis())
+        {
+            timeoutEntries();
+
+            lastCleaned = clock.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Sets this instance to automatically (and periodically) timeout entries
+     * in the cache, whenever a get() or put() operation is actioned.
+     */
+    public synchronized void setAutoTimeout(boolean autoTimeout)
+    {
+        this.autoTimeout = autoTimeout;
+    }
+
+    public synchronized boolean isAutoTimeout()
+    {
+        return this.autoTimeout;
+    }
+
+    /**
+     * Sets the clock used to timestamp and expire entries.  This should be set
+     * before any entries are put into the map.
+     *
+     * @param clock the clock to use.
+     */
+    public synchronized void setClock(ExpiryClock clock)
+    {
+        this.clock       = clock;
+        this.lastCleaned = clock.currentTimeMillis();
+    }
+
+    /**
+     * Returns the maximum off-heap memory this map will use, in bytes.
+     */
+    public long getMaxMemory()
+    {
+        return maxMemory;
+    }
+
+    /**
+     * Returns the off-heap memory currently reserved by this map, in bytes.
+     * Slab memory stays reserved for re-use by values of any size after entries
+     * are removed, until room is needed for a value too large for a slab.
+     */
+    public synchronized long getReservedMemory()
+    {
+        return slabs.getReserved() + largeMemory;
+    }
+
+    /**
+     * Evict the oldest entry.
+     *
+     * @return false if the map is empty.
+     */
+    private boolean evictOldest()
+    {
+        Iterator<Entry> it = map.values().iterator();
+
+        if (!it.hasNext())
+            return false;
+
+        Entry entry = it.next();
+        it.remove();
+        release(entry);
+        return true;
+    }
+
+    /**
+     * Return the entry's memory for re-use.
+     */
+    private void release(Entry entry)
+    {
+        if (entry.large != null)
+        {
+            largeMemory -= entry.length;
+            entry.large = null;
+        }
+        else
+        {
+            slabs.free(entry.handle);
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now)
+    {
+        return (entry.expires < now);
+    }
+
+    /**
+     * The on-heap index entry for a value held off-heap.
+     */
+    private static final class Entry
+    {
+        final long expires;
+        final int  length;
+        long       handle;
+        ByteBuffer large;
+
+        Entry(long expires, int length)
+        {
+            this.expires = expires;
+            this.length  = length;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/* Open Source Licensed under GNU LGPL 3.0
+ * See http://www.gnu.org/copyleft/lesser.html for details. */
+package com.magi.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A slab allocator of off-heap memory, used by the OffHeapExpiryHashMap.
+ *
+ * Memory is reserved in fixed size slabs of direct ByteBuffers.  Each slab in
+ * use is carved into equal slots of one size class, the size classes being
+ * powers of two from 64 bytes up to the slab size.  A value is stored in the
+ * smallest slot it fits in, and freed slots are re-used by later values of the
+ * same size class, so the heap only ever holds the slab buffer objects.
+ *
+ * A slab whose slots are all freed goes back to a shared pool, from which it
+ * can be given to any size class, so memory carved up for one size of value is
+ * not lost to the others.  Pooled slabs stay reserved until released with
+ * releaseFree().
+ *
+ * An allocated slot is identified by a long handle, of the slab number in the
+ * high word and the slot number within the slab in the low word.  This object
+ * is not thread safe.
+ *
+ * @author patkins
+ */
+final class SlabAllocator
+{
+    private static final int MIN_SLOT_SHIFT = 6; // 64 bytes
+
+    private final int         slabSize;
+    private final Slab[]      partial;  // per size class, slabs with free slots
+    private final List<Slab>  slabs    = new ArrayList<Slab>(); // by slab number
+    private final List<Slab>  pooled   = new ArrayList<Slab>(); // empty, with a buffer
+    private final List<Slab>  unbacked = new ArrayList<Slab>(); // empty, buffer released
+    private long              reserved = 0;
+
+    /**
+     * Create an allocator.
+     *
+     * @param slabSize the size of each slab, rounded up to a power of two.
+     */
+    SlabAllocator(int slabSize)
+    {
+        int shift = Math.max(MIN_SLOT_SHIFT, 32 - Integer.numberOfLeadingZeros(slabSize - 1));
+
+        this.slabSize = 1 << shift;
+        this.partial  = new Slab[shift - MIN_SLOT_SHIFT + 1];
+    }
+
+    /** Returns the largest value that fits in a slot. */
+    int getMaxSlotSize()
+    {
+        return slabSize;
+    }
+
+    /** Returns the number of bytes of slabs reserved so far, including pooled slabs. */
+    long getReserved()
+    {
+        return reserved;
+    }
+
+    /**
+     * Allocate a slot for a value of the length given.
+     *
+     * @param  length the value length, no more than getMaxSlotSize().
+     * @param  limit the number of bytes of slabs that may be reserved.
+     * @return the slot handle, or -1 if a new slab would exceed the limit.
+     */
+    long allocate(int length, long limit)
+    {
+        int  index = sizeClass(length);
+        Slab slab  = partial[index];
+
+        if (slab == null)
+        {
+            slab = takeSlab(limit);
+            if (slab == null)
+                return -1;
+
+            slab.assign(index, 1 << (index + MIN_SLOT_SHIFT), slabSize);
+            link(slab);
+        }
+
+        int slot = slab.free[--slab.freeCount];
+        if (slab.freeCount == 0)
+            unlink(slab); // full
+
+        return ((long) slab.number << 32) | slot;
+    }
+
+    /**
+     * Free the slot given, for re-use.
+     */
+    void free(long handle)
+    {
+        Slab slab = slabs.get((int) (handle >>> 32));
+
+        if (slab.freeCount == 0)
+            link(slab); // was full
+
+        slab.free[slab.freeCount++] = (int) handle;
+
+        if (slab.freeCount == slab.free.length)
+        {
+            // Empty - back to the pool for any size class
+            unlink(slab);
+            slab.free = null;
+            pooled.add(slab);
+        }
+    }
+
+    /**
+     * Release the buffers of the pooled empty slabs, so that their memory can
+     * be used for something else once they are garbage collected.
+     *
+     * @return the number of bytes released.
+     */
+    long releaseFree()
+    {
+        long released = (long) pooled.size() * slabSize;
+
+        for (int i = 0; i < pooled.size(); i++)
+        {
+            Slab slab = pooled.get(i);
+            slab.buffer = null;
+            unbacked.add(slab);
+        }
+
+        pooled.clear();
+        reserved -= released;
+        return released;
+    }
+
+    /**
+     * Copy the value into the slot given.
+     */
+    void write(long handle, byte[] value)
+    {
+        ByteBuffer slab = position(handle);
+        slab.put(value, 0, value.length);
+    }
+
+    /**
+     * Copy length bytes out of the slot given.
+     */
+    byte[] read(long handle, int length)
+    {
+        byte[]     value = new byte[length];
+        ByteBuffer slab  = position(handle);
+
+        slab.get(value, 0, length);
+        return value;
+    }
+
+    /**
+     * Release all slabs.  The memory is returned once the buffers are garbage
+     * collected.
+     */
+    void clear()
+    {
+        for (int i = 0; i < partial.length; i++)
+            partial[i] = null;
+
+        slabs.clear();
+        pooled.clear();
+        unbacked.clear();
+        reserved = 0;
+    }
+
+    /**
+     * Returns a pooled slab, or a new one if there is room under the limit, or
+     * null.
+     */
+    private Slab takeSlab(long limit)
+    {
+        if (!pooled.isEmpty())
+            return pooled.remove(pooled.size() - 1);
+
+        if (reserved + slabSize > limit)
+            return null;
+
+        Slab slab;
+        if (!unbacked.isEmpty())
+        {
+            slab = unbacked.remove(unbacked.size() - 1);
+        }
+        else
+        {
+            slab = new Slab(slabs.size());
+            slabs.add(slab);
+        }
+
+        slab.buffer = ByteBuffer.allocateDirect(slabSize);
+        reserved += slabSize;
+        return slab;
+    }
+
+    /**
+     * Add the slab to the front of the list of slabs with free slots for it's
+     * size class.
+     */
+    private void link(Slab slab)
+    {
+        Slab head = partial[slab.sizeClass];
+
+        slab.prev = null;
+        slab.next = head;
+        if (head != null)
+            head.prev = slab;
+
+        partial[slab.sizeClass] = slab;
+    }
+
+    private void unlink(Slab slab)
+    {
+        if (slab.prev == null)
+            partial[slab.sizeClass] = slab.next;
+        else
+            slab.prev.next = slab.next;
+
+        if (slab.next != null)
+            slab.next.prev = slab.prev;
+
+        slab.prev = null;
+        slab.next = null;
+    }
+
+    /**
+     * Returns the slab holding the slot, positioned at the start of the slot.
+     */
+    private ByteBuffer position(long handle)
+    {
+        Slab       slab   = slabs.get((int) (handle >>> 32));
+        ByteBuffer buffer = slab.buffer;
+
+        buffer.clear();
+        buffer.position((int) handle * slab.slotSize);
+        return buffer;
+    }
+
+    private int sizeClass(int length)
+    {
+        if (length <= (1 << MIN_SLOT_SHIFT))
+            return 0;
+
+        return (32 - Integer.numberOfLeadingZeros(length - 1)) - MIN_SLOT_SHIFT;
+    }
+
+    /**
+     * A slab, and while it is in use, it's size class and a stack of it's free
+     * slot numbers.
+     */
+    private static final class Slab
+    {
+        final int  number;
+        ByteBuffer buffer;
+        int        sizeClass;
+        int        slotSize;
+        int[]      free;
+        int        freeCount;
+        Slab       prev;
+        Slab       next;
+
+        Slab(int number)
+        {
+            this.number = number;
+        }
+
+        void assign(int sizeClass, int slotSize, int slabSize)
+        {
+            int perSlab = slabSize / slotSize;
+
+            this.sizeClass = sizeClass;
+            this.slotSize  = slotSize;
+            this.free      = new int[perSlab];
+            this.freeCount = perSlab;
+
+            // Stacked in reverse, so the lowest slots are used first
+            for (int i = 0; i < perSlab; i++)
+                free[i] = perSlab - 1 - i;
+        }
+    }
+}